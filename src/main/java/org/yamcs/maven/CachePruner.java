@@ -0,0 +1,94 @@
+package org.yamcs.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Age-based eviction for the machine-wide caches in the cache directory.
+ * <p>
+ * Cache entries are touched whenever they are used, so that their modification
+ * time tells when they were last needed. Entries that were not used within the
+ * retention period are deleted. A directory is pruned at most once a day, which
+ * is recorded in a marker file.
+ * <p>
+ * Pruning is best effort: the directories may be shared with concurrent builds,
+ * and entries that cannot be deleted are left for a later attempt.
+ */
+final class CachePruner {
+
+    private static final String MARKER_FILE = ".last-pruned";
+    private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private CachePruner() {
+    }
+
+    /**
+     * Marks a cache entry as used.
+     */
+    static void touch(File entry) {
+        try {
+            Files.setLastModifiedTime(entry.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Ignore, at worst the entry is evicted and recreated
+        }
+    }
+
+    /**
+     * Deletes the entries of a cache directory that were not used within the given
+     * number of days, unless the directory was already pruned today.
+     *
+     * @param directory
+     *                      a cache directory, whose direct children are entries.
+     * @param retentionDays
+     *                      the number of days an unused entry is kept. A value of
+     *                      zero or less disables pruning.
+     * @param keptNames
+     *                      names of children that are not entries, and are never
+     *                      deleted.
+     * @return the number of deleted entries.
+     */
+    static int prune(File directory, int retentionDays, String... keptNames) {
+        if (retentionDays <= 0 || !directory.isDirectory()) {
+            return 0;
+        }
+        var now = System.currentTimeMillis();
+        var marker = new File(directory, MARKER_FILE);
+        if (marker.exists() && now - marker.lastModified() < PRUNE_INTERVAL_MILLIS) {
+            return 0;
+        }
+        try {
+            Files.write(marker.toPath(), new byte[0]);
+        } catch (IOException e) {
+            return 0;
+        }
+
+        var cutoff = now - TimeUnit.DAYS.toMillis(retentionDays);
+        var entries = directory.listFiles();
+        int deleted = 0;
+        if (entries != null) {
+            for (var entry : entries) {
+                if (entry.getName().equals(MARKER_FILE) || Arrays.asList(keptNames).contains(entry.getName())
+                        || entry.lastModified() >= cutoff) {
+                    continue;
+                }
+                try {
+                    if (entry.isDirectory()) {
+                        FileUtils.deleteDirectory(entry);
+                    } else {
+                        Files.delete(entry.toPath());
+                    }
+                    deleted++;
+                } catch (IOException e) {
+                    // Possibly in use, try again next time
+                }
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,191 @@
+package org.yamcs.maven;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Persisted record of the inputs that went into a {@code protoc} run. Each
+ * entry maps a key (a source file, a dependency proto, a tool version, an
+ * option) to a content hash or value.
+ * <p>
+ * Two indexes are equal when they were computed from identical inputs, which
+ * makes it possible to decide whether compilation can be skipped without
+ * relying on file modification times.
+ */
+class FingerprintIndex {
+
+    private static final String HEADER = "# protoc fingerprint index v1";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SortedMap<String, String> entries = new TreeMap<>();
+
+    /**
+     * Reads a previously saved index. A missing or unreadable file results in an
+     * empty index.
+     */
+    static FingerprintIndex load(File file) {
+        var index = new FingerprintIndex();
+        if (!file.isFile()) {
+            return index;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF_8)) {
+            var header = reader.readLine();
+            if (!HEADER.equals(header)) {
+                return index;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab != -1) {
+                    index.entries.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        } catch (IOException e) {
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Writes this index to the given file. The file is replaced atomically, so
+     * that an interrupted build never leaves a partial index behind.
+     */
+    void save(File file) {
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            var tmpFile = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp").toFile();
+            try (Writer writer = Files.newBufferedWriter(tmpFile.toPath(), UTF_8)) {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (var entry : entries.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(entry.getValue());
+                    writer.write('\n');
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to write fingerprint index " + file, e);
+        }
+    }
+
+    void put(String key, String value) {
+        if (key.indexOf('\t') != -1 || key.indexOf('\n') != -1) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+        entries.put(key, value);
+    }
+
+    void putAll(FingerprintIndex other) {
+        entries.putAll(other.entries);
+    }
+
+    String get(String key) {
+        return entries.get(key);
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Returns all entries whose key starts with the given prefix, with the prefix
+     * removed from the key.
+     */
+    SortedMap<String, String> getEntries(String prefix) {
+        var result = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : entries.tailMap(prefix).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Compares this index with another one, ignoring entries whose key starts with
+     * any of the given prefixes.
+     */
+    boolean equalsExcluding(FingerprintIndex other, String... excludedPrefixes) {
+        return filter(entries, excludedPrefixes).equals(filter(other.entries, excludedPrefixes));
+    }
+
+    private static SortedMap<String, String> filter(SortedMap<String, String> entries, String[] excludedPrefixes) {
+        var result = new TreeMap<>(entries);
+        for (var prefix : excludedPrefixes) {
+            result.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+        return result;
+    }
+
+    static String sha256(byte[] bytes) {
+        var digest = newDigest();
+        digest.update(bytes);
+        return toHex(digest.digest());
+    }
+
+    static String sha256(InputStream in) throws IOException {
+        var digest = newDigest();
+        var buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            digest.update(buf, 0, n);
+        }
+        return toHex(digest.digest());
+    }
+
+    static String sha256(File file) throws IOException {
+        try (var in = Files.newInputStream(file.toPath())) {
+            return sha256(in);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        var buf = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            buf[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            buf[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(buf);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FingerprintIndex)) {
+            return false;
+        }
+        return entries.equals(((FingerprintIndex) obj).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(entries);
+    }
+}
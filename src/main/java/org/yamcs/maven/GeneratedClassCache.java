@@ -0,0 +1,167 @@
+package org.yamcs.maven;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.tools.ToolProvider;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Machine-wide cache of compiled generated sources, keyed by a hash of the
+ * sources, the compile classpath and the compiler settings.
+ * <p>
+ * Entries are directories of class files, and are immutable once written.
+ * Entries that are not used for a while are removed by {@link CachePruner}.
+ */
+class GeneratedClassCache {
+
+    private final File directory;
+
+    GeneratedClassCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Derives a cache key for compiling the given sources.
+     * <p>
+     * Jars are identified by their path, size and modification time. Sources and
+     * class files of reactor modules are identified by their content, because a
+     * rebuilt module gets new modification times. Their hashes are looked up in
+     * {@code hashes} first, keyed by path, size and modification time, so that only
+     * files that were written since the previous build are read.
+     *
+     * @param sourceDirectory
+     *                        the directory containing the generated sources.
+     * @param classpath
+     *                        the compile classpath.
+     * @param release
+     *                        the Java release to compile for, or {@code null} for
+     *                        the default of the compiler.
+     * @param previousHashes
+     *                        the content hashes of the previous build.
+     * @param hashes
+     *                        receives the content hashes of this build.
+     */
+    static String computeKey(File sourceDirectory, List<File> classpath, String release,
+            FingerprintIndex previousHashes, FingerprintIndex hashes) throws IOException {
+
+        var lines = new ArrayList<String>();
+        lines.add("cache.version=3");
+        lines.add("java.version=" + Runtime.version());
+        lines.add("release=" + release);
+        for (var file : FileUtils.getFiles(sourceDirectory, "**/*.java", null)) {
+            var name = ProtoImportGraph.toName(sourceDirectory, file);
+            lines.add("source:" + name + "=" + getContentHash(file, previousHashes, hashes));
+        }
+        Collections.sort(lines);
+
+        // Classpath order matters, and is kept
+        for (var file : classpath) {
+            if (file.isDirectory()) {
+                for (var child : FileUtils.getFiles(file, "**/*.class", null)) {
+                    lines.add("classpath:" + file.getAbsolutePath() + "!" + ProtoImportGraph.toName(file, child)
+                            + "=" + getContentHash(child, previousHashes, hashes));
+                }
+            } else if (file.isFile()) {
+                lines.add("classpath:" + file.getAbsolutePath() + "=" + getStat(file));
+            }
+        }
+        return FingerprintIndex.sha256(String.join("\n", lines).getBytes(UTF_8));
+    }
+
+    private static String getContentHash(File file, FingerprintIndex previousHashes, FingerprintIndex hashes)
+            throws IOException {
+        // Format: size mtime sha256
+        var key = file.getAbsolutePath();
+        var stat = getStat(file);
+        var value = previousHashes.get(key);
+        if (value == null || !value.startsWith(stat + " ")) {
+            value = stat + " " + FingerprintIndex.sha256(file);
+        }
+        hashes.put(key, value);
+        return value.substring(stat.length() + 1);
+    }
+
+    private static String getStat(File file) {
+        return file.length() + " " + file.lastModified();
+    }
+
+    /**
+     * Returns the compiled classes for the given key, compiling the sources first
+     * if the cache has no such entry.
+     *
+     * @return a directory containing the class files, or {@code null} if the
+     *         sources could not be compiled.
+     */
+    File getClasses(String key, File sourceDirectory, List<File> classpath, String release, Log log)
+            throws IOException {
+        var entryDirectory = new File(directory, key);
+        if (entryDirectory.isDirectory()) {
+            CachePruner.touch(entryDirectory);
+            return entryDirectory;
+        }
+
+        var compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            log.warn("No Java compiler available, generated sources will not be precompiled");
+            return null;
+        }
+
+        var sourceFiles = FileUtils.getFiles(sourceDirectory, "**/*.java", null);
+        Files.createDirectories(directory.toPath());
+        Path tmpDirectory = Files.createTempDirectory(directory.toPath(), key + ".");
+        try {
+            var args = new ArrayList<String>();
+            args.add("-d");
+            args.add(tmpDirectory.toString());
+            args.add("-classpath");
+            args.add(classpath.stream().map(File::getAbsolutePath).collect(Collectors.joining(File.pathSeparator)));
+            args.add("-encoding");
+            args.add("UTF-8");
+            args.add("-proc:none");
+            args.add("-nowarn");
+            args.add("-g");
+            if (release != null && !release.isEmpty()) {
+                args.add("--release");
+                args.add(release);
+            }
+            for (var sourceFile : sourceFiles) {
+                args.add(sourceFile.getAbsolutePath());
+            }
+
+            var err = new ByteArrayOutputStream();
+            log.info(String.format("Precompiling %d generated source file(s)", sourceFiles.size()));
+            if (compiler.run(null, err, err, args.toArray(new String[0])) != 0) {
+                log.warn("Unable to precompile generated sources:\n" + err.toString(UTF_8));
+                return null;
+            }
+
+            try {
+                Files.move(tmpDirectory, entryDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                tmpDirectory = null;
+            } catch (IOException e) {
+                if (!entryDirectory.isDirectory()) {
+                    throw e;
+                }
+                // Compiled concurrently by another build
+            }
+            return entryDirectory;
+        } finally {
+            if (tmpDirectory != null) {
+                FileUtils.deleteDirectory(tmpDirectory.toFile());
+            }
+        }
+    }
+}
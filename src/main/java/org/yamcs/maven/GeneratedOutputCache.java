@@ -0,0 +1,175 @@
+package org.yamcs.maven;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Machine-wide cache of generated files, keyed by a hash of everything that
+ * goes into a compilation: source and dependency definitions, tool versions and
+ * options.
+ * <p>
+ * Each entry is a directory containing the generated Java files, the descriptor
+ * set if one was requested, and an index of the proto source of each generated
+ * file. Entries are immutable once written, files are always copied in and out
+ * of the cache so that changes to the output directory cannot affect them.
+ * Entries that are not used for a while are removed by {@link CachePruner}.
+ */
+class GeneratedOutputCache {
+
+    private static final String JAVA_DIRECTORY = "java";
+    private static final String DESCRIPTOR_SET_FILE = "descriptor-set.protobin";
+    private static final String OUTPUTS_FILE = "outputs.txt";
+
+    private final File directory;
+
+    GeneratedOutputCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Derives a cache key from the fingerprints of a compilation. Absolute paths
+     * are left out, so that different checkouts of the same sources share entries.
+     */
+    static String computeKey(FingerprintIndex fingerprints) {
+        var lines = new ArrayList<String>();
+        lines.add("cache.version=1");
+        for (var entry : fingerprints.getEntries("").entrySet()) {
+            var key = entry.getKey();
+            if (key.startsWith("output:") || key.startsWith("artifact:") || key.startsWith("descriptorSetArtifact:")
+                    || key.equals("option.outputDirectory")) {
+                continue;
+            } else if (key.startsWith("dependency:") || key.startsWith("descriptorSet:")) {
+                key = key.substring(0, key.indexOf(':') + 1);
+            } else if (key.equals("option.descriptorSetFile")) {
+                lines.add(key + "=" + new File(entry.getValue()).getName());
+                continue;
+            }
+            lines.add(key + "=" + entry.getValue());
+        }
+        Collections.sort(lines);
+        return FingerprintIndex.sha256(String.join("\n", lines).getBytes(UTF_8));
+    }
+
+    /**
+     * Restores the generated files of a cache entry. Files that already have the
+     * expected content are left untouched, others are copied from the cache.
+     *
+     * @param key
+     *                          the cache key.
+     * @param outputDirectory
+     *                          the directory where Java files are restored.
+     * @param descriptorSetFile
+     *                          the location of the descriptor set, or {@code null}
+     *                          if none was requested.
+     * @return restored files, mapped to their proto source, or {@code null} if the
+     *         cache has no entry for the key.
+     */
+    SortedMap<String, String> restore(String key, File outputDirectory, File descriptorSetFile) {
+        var entryDirectory = new File(directory, key);
+        var outputsFile = new File(entryDirectory, OUTPUTS_FILE);
+        var cachedDescriptorSetFile = new File(entryDirectory, DESCRIPTOR_SET_FILE);
+        if (!outputsFile.isFile() || (descriptorSetFile != null && !cachedDescriptorSetFile.isFile())) {
+            return null;
+        }
+
+        var outputs = FingerprintIndex.load(outputsFile).getEntries("");
+        try {
+            for (var name : outputs.keySet()) {
+                var cachedFile = new File(entryDirectory, JAVA_DIRECTORY + "/" + name);
+                restoreFile(cachedFile.toPath(), new File(outputDirectory, name).toPath());
+            }
+            if (descriptorSetFile != null) {
+                restoreFile(cachedDescriptorSetFile.toPath(), descriptorSetFile.toPath());
+            }
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to restore generated files from " + entryDirectory, e);
+        }
+
+        CachePruner.touch(entryDirectory);
+        return outputs;
+    }
+
+    private static void restoreFile(Path cachedFile, Path targetFile) throws IOException {
+        if (Files.isRegularFile(targetFile)) {
+            if (Files.size(targetFile) == Files.size(cachedFile)
+                    && Arrays.equals(Files.readAllBytes(targetFile), Files.readAllBytes(cachedFile))) {
+                return;
+            }
+            Files.delete(targetFile);
+        }
+        Files.createDirectories(targetFile.getParent());
+        Files.copy(cachedFile, targetFile);
+    }
+
+    /**
+     * Adds the result of a compilation to the cache, unless an entry already
+     * exists. The entry is written to a temporary directory which is then
+     * renamed, so that it is either complete or absent.
+     *
+     * @param key
+     *                          the cache key.
+     * @param outputDirectory
+     *                          the directory containing the generated Java files.
+     * @param outputs
+     *                          generated files, relative to the output directory,
+     *                          mapped to their proto source.
+     * @param descriptorSetFile
+     *                          the generated descriptor set, or {@code null} if
+     *                          none was requested.
+     */
+    void store(String key, File outputDirectory, Map<String, String> outputs, File descriptorSetFile) {
+        var entryDirectory = new File(directory, key);
+        if (entryDirectory.exists()) {
+            return;
+        }
+
+        Path tmpDirectory = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            tmpDirectory = Files.createTempDirectory(directory.toPath(), key + ".");
+            var index = new FingerprintIndex();
+            for (var output : outputs.entrySet()) {
+                var targetFile = tmpDirectory.resolve(JAVA_DIRECTORY + "/" + output.getKey());
+                Files.createDirectories(targetFile.getParent());
+                Files.copy(new File(outputDirectory, output.getKey()).toPath(), targetFile);
+                index.put(output.getKey(), output.getValue());
+            }
+            if (descriptorSetFile != null) {
+                Files.copy(descriptorSetFile.toPath(), tmpDirectory.resolve(DESCRIPTOR_SET_FILE));
+            }
+            index.save(tmpDirectory.resolve(OUTPUTS_FILE).toFile());
+
+            try {
+                Files.move(tmpDirectory, entryDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                tmpDirectory = null;
+            } catch (IOException e) {
+                if (!entryDirectory.isDirectory()) {
+                    throw e;
+                }
+                // Stored concurrently by another build
+            }
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to store generated files in " + entryDirectory, e);
+        } finally {
+            if (tmpDirectory != null) {
+                try {
+                    FileUtils.deleteDirectory(tmpDirectory.toFile());
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,762 @@
+package org.yamcs.maven;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.yamcs.maven.ServiceGenerator.SourceBuilder;
+
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto.Label;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto.Type;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorResponse.File;
+
+/**
+ * Generates JSON codecs for the messages of a proto file, following the proto3
+ * JSON mapping as implemented by {@code JsonFormat} with default options.
+ * <p>
+ * Each proto file gets a {@code <Outer>Json} class with a {@code write} and a
+ * {@code read<Message>} method per message, which use the generated accessors
+ * of each field directly, rather than reflecting over descriptors. Fields whose
+ * type is defined in another file, including well-known types, are delegated to
+ * {@code JsonFormat}. Otherwise the generated code of one file would depend on
+ * which other files happen to be compiled with it.
+ * <p>
+ * Written output is identical to that of {@code JsonFormat} when the
+ * {@code JsonWriter} is HTML-safe.
+ */
+class JsonCodecGenerator {
+
+    /**
+     * Capitalized field names that protoc decorates with a trailing underscore,
+     * because they clash with methods of generated messages.
+     */
+    private static final Set<String> FORBIDDEN_NAMES = Set.of("Class", "DefaultInstanceForType", "ParserForType",
+            "SerializedSize", "AllFields", "DescriptorForType", "InitializationErrorString", "UnknownFields",
+            "CachedSize");
+
+    private final Map<String, FileDescriptorProto> fileForType = new HashMap<>();
+    private final Map<String, DescriptorProto> messageTypes = new HashMap<>();
+    private final Map<String, String> javaNames = new HashMap<>();
+
+    JsonCodecGenerator(CodeGeneratorRequest request) {
+        for (var file : request.getProtoFileList()) {
+            var prefix = file.getPackage().isEmpty() ? "." : "." + file.getPackage() + ".";
+            var javaPrefix = file.getOptions().getJavaMultipleFiles()
+                    ? ""
+                    : getOuterClassname(file) + ".";
+            for (var messageType : file.getMessageTypeList()) {
+                indexMessage(file, prefix, javaPrefix, messageType);
+            }
+            for (var enumType : file.getEnumTypeList()) {
+                indexEnum(file, prefix, javaPrefix, enumType);
+            }
+        }
+    }
+
+    private void indexMessage(FileDescriptorProto file, String prefix, String javaPrefix, DescriptorProto message) {
+        var name = prefix + message.getName();
+        var javaName = javaPrefix + message.getName();
+        fileForType.put(name, file);
+        messageTypes.put(name, message);
+        javaNames.put(name, javaName);
+        for (var nestedType : message.getNestedTypeList()) {
+            indexMessage(file, name + ".", javaName + ".", nestedType);
+        }
+        for (var enumType : message.getEnumTypeList()) {
+            indexEnum(file, name + ".", javaName + ".", enumType);
+        }
+    }
+
+    private void indexEnum(FileDescriptorProto file, String prefix, String javaPrefix, EnumDescriptorProto enumType) {
+        var name = prefix + enumType.getName();
+        fileForType.put(name, file);
+        javaNames.put(name, javaPrefix + enumType.getName());
+    }
+
+    /**
+     * Generates the codecs of a file.
+     *
+     * @return the generated file, or {@code null} if the file defines no messages.
+     */
+    File.Builder generate(FileDescriptorProto file) {
+        // The JSON mapping of well-known types is not derived from their fields
+        if (file.getMessageTypeCount() == 0 || file.getPackage().equals("google.protobuf")) {
+            return null;
+        }
+        var javaPackage = getJavaPackage(file);
+        var javaName = getOuterClassname(file) + "Json";
+
+        var jsource = new SourceBuilder(javaName);
+        jsource.setSource(file.getName());
+        jsource.setJavadoc("JSON codecs for the messages in " + file.getName() + ".");
+        jsource.setPackage(javaPackage);
+        var className = ServiceGenerator.class.getName();
+        // No date, so that unchanged sources produce identical output
+        jsource.addAnnotation("@javax.annotation.processing.Generated(\"" + className + "\")");
+        jsource.addImport("java.io.IOException");
+        jsource.addImport("java.math.BigDecimal");
+        jsource.addImport("java.math.BigInteger");
+        jsource.addImport("java.util.Base64");
+        jsource.addImport("java.util.Map");
+        jsource.addImport("com.google.gson.stream.JsonReader");
+        jsource.addImport("com.google.gson.stream.JsonToken");
+        jsource.addImport("com.google.gson.stream.JsonWriter");
+        jsource.addImport("com.google.gson.stream.MalformedJsonException");
+        jsource.addImport("com.google.protobuf.ByteString");
+        jsource.addImport("com.google.protobuf.Descriptors.EnumDescriptor");
+        jsource.addImport("com.google.protobuf.Descriptors.EnumValueDescriptor");
+
+        var prefix = file.getPackage().isEmpty() ? "." : "." + file.getPackage() + ".";
+        var delegates = false;
+        for (var messageType : file.getMessageTypeList()) {
+            delegates |= addMessage(jsource, file, prefix + messageType.getName(), messageType);
+        }
+        addHelpers(jsource, delegates);
+
+        var filename = javaPackage.replace('.', '/') + "/" + javaName + ".java";
+        return jsource.toFile(filename);
+    }
+
+    /**
+     * Adds the codec of a message and of its nested messages.
+     *
+     * @return whether any field is delegated to {@code JsonFormat}.
+     */
+    private boolean addMessage(SourceBuilder jsource, FileDescriptorProto file, String name,
+            DescriptorProto message) {
+        var delegates = false;
+        var javaName = javaNames.get(name);
+
+        var msource = jsource.addMethod("write");
+        msource.setStatic(true);
+        msource.addArg("JsonWriter", "out");
+        msource.addArg(javaName, "message");
+        msource.addThrows("IOException");
+        var body = msource.body();
+        body.append("out.beginObject();\n");
+        for (var field : message.getFieldList()) {
+            delegates |= isDelegated(file, field);
+            appendWriteField(body, file, name, message, field);
+        }
+        body.append("out.endObject();\n");
+
+        msource = jsource.addMethod(getReadMethod(name));
+        msource.setStatic(true);
+        msource.setReturn(javaName);
+        msource.addArg("JsonReader", "in");
+        msource.addThrows("IOException");
+        body = msource.body();
+        body.append(javaName).append(".Builder builder = ").append(javaName).append(".newBuilder();\n");
+        body.append("in.beginObject();\n");
+        body.append("while (in.hasNext()) {\n");
+        body.append("    String name = in.nextName();\n");
+        body.append("    switch (name) {\n");
+        for (var field : message.getFieldList()) {
+            appendReadField(body, file, field);
+        }
+        body.append("    default:\n");
+        body.append("        throw new MalformedJsonException(\"Unknown field \" + name + \" in ")
+                .append(name.substring(1)).append("\");\n");
+        body.append("    }\n");
+        body.append("}\n");
+        body.append("in.endObject();\n");
+        body.append("return builder.build();\n");
+
+        for (var nestedType : message.getNestedTypeList()) {
+            if (!nestedType.getOptions().getMapEntry()) {
+                delegates |= addMessage(jsource, file, name + "." + nestedType.getName(), nestedType);
+            }
+        }
+        return delegates;
+    }
+
+    private void appendWriteField(StringBuilder body, FileDescriptorProto file, String messageName,
+            DescriptorProto message, FieldDescriptorProto field) {
+        var name = getCapitalizedName(field);
+        var openEnum = isOpenEnum(file, field);
+        var mapEntry = getMapEntry(field);
+        if (mapEntry != null) {
+            var key = mapEntry.getField(0);
+            var value = mapEntry.getField(1);
+            var valueOpenEnum = isOpenEnum(file, value);
+            var accessor = valueOpenEnum ? "get" + name + "ValueMap()" : "get" + name + "Map()";
+            body.append("if (message.get").append(name).append("Count() > 0) {\n");
+            body.append("    out.name(\"").append(getJsonName(field)).append("\");\n");
+            body.append("    out.beginObject();\n");
+            body.append("    for (Map.Entry<").append(getBoxedType(file, key, false)).append(", ")
+                    .append(getBoxedType(file, value, valueOpenEnum)).append("> entry : message.").append(accessor)
+                    .append(".entrySet()) {\n");
+            body.append("        out.name(").append(getKeyToString(key, "entry.getKey()")).append(");\n");
+            body.append("        ").append(getWriteValue(file, value, "entry.getValue()", valueOpenEnum)).append("\n");
+            body.append("    }\n");
+            body.append("    out.endObject();\n");
+            body.append("}\n");
+        } else if (field.getLabel() == Label.LABEL_REPEATED) {
+            var element = "message.get" + name + (openEnum ? "Value" : "") + "(i)";
+            body.append("if (message.get").append(name).append("Count() > 0) {\n");
+            body.append("    out.name(\"").append(getJsonName(field)).append("\");\n");
+            body.append("    out.beginArray();\n");
+            body.append("    for (int i = 0; i < message.get").append(name).append("Count(); i++) {\n");
+            body.append("        ").append(getWriteValue(file, field, element, openEnum)).append("\n");
+            body.append("    }\n");
+            body.append("    out.endArray();\n");
+            body.append("}\n");
+        } else {
+            var value = "message.get" + name + (openEnum ? "Value" : "") + "()";
+            body.append("if (").append(getPresence(file, messageName, message, field, value)).append(") {\n");
+            body.append("    out.name(\"").append(getJsonName(field)).append("\");\n");
+            body.append("    ").append(getWriteValue(file, field, value, openEnum)).append("\n");
+            body.append("}\n");
+        }
+    }
+
+    /**
+     * Returns the condition under which {@code JsonFormat} prints a singular
+     * field: when it is set, for fields with explicit presence, or else when it
+     * differs from the default value.
+     */
+    private String getPresence(FileDescriptorProto file, String messageName, DescriptorProto message,
+            FieldDescriptorProto field, String value) {
+        var name = getCapitalizedName(field);
+        if (field.hasOneofIndex() && !field.getProto3Optional()) {
+            var oneofName = ServiceGenerator.toCamelCase(message.getOneofDecl(field.getOneofIndex()).getName(), true);
+            var caseConstant = javaNames.get(messageName) + "." + oneofName + "Case."
+                    + field.getName().toUpperCase();
+            return "message.get" + oneofName + "Case() == " + caseConstant;
+        }
+        if (field.getType() == Type.TYPE_MESSAGE || field.getType() == Type.TYPE_GROUP
+                || field.getProto3Optional() || !file.getSyntax().equals("proto3")) {
+            return "message.has" + name + "()";
+        }
+        switch (field.getType()) {
+        case TYPE_BOOL:
+            return value;
+        case TYPE_STRING:
+        case TYPE_BYTES:
+            return "!" + value + ".isEmpty()";
+        case TYPE_FLOAT:
+            return "Float.floatToRawIntBits(" + value + ") != 0";
+        case TYPE_DOUBLE:
+            return "Double.doubleToRawLongBits(" + value + ") != 0";
+        default:
+            return value + " != 0";
+        }
+    }
+
+    private String getWriteValue(FileDescriptorProto file, FieldDescriptorProto field, String value,
+            boolean openEnum) {
+        switch (field.getType()) {
+        case TYPE_INT32:
+        case TYPE_SINT32:
+        case TYPE_SFIXED32:
+        case TYPE_BOOL:
+        case TYPE_STRING:
+            return "out.value(" + value + ");";
+        case TYPE_UINT32:
+        case TYPE_FIXED32:
+            return "out.value(Integer.toUnsignedLong(" + value + "));";
+        case TYPE_INT64:
+        case TYPE_SINT64:
+        case TYPE_SFIXED64:
+            return "out.value(Long.toString(" + value + "));";
+        case TYPE_UINT64:
+        case TYPE_FIXED64:
+            return "out.value(Long.toUnsignedString(" + value + "));";
+        case TYPE_FLOAT:
+            return "writeFloat(out, " + value + ");";
+        case TYPE_DOUBLE:
+            return "writeDouble(out, " + value + ");";
+        case TYPE_BYTES:
+            return "out.value(Base64.getEncoder().encodeToString(" + value + ".toByteArray()));";
+        case TYPE_ENUM:
+            if (openEnum) {
+                return "writeEnum(out, " + getJavaType(file, field) + ".forNumber(" + value + "), " + value + ");";
+            } else {
+                return "out.value(" + value + ".name());";
+            }
+        default:
+            if (isDelegated(file, field)) {
+                return "writeWithJsonFormat(out, " + value + ");";
+            } else {
+                return "write(out, " + value + ");";
+            }
+        }
+    }
+
+    private void appendReadField(StringBuilder body, FileDescriptorProto file, FieldDescriptorProto field) {
+        var name = getCapitalizedName(field);
+        body.append("    case \"").append(getJsonName(field)).append("\":\n");
+        if (!field.getName().equals(getJsonName(field))) {
+            body.append("    case \"").append(field.getName()).append("\":\n");
+        }
+
+        // A null value of google.protobuf.Value is not the default value
+        var nullable = !field.getTypeName().equals(".google.protobuf.Value");
+        var indent = nullable ? "            " : "        ";
+        if (nullable) {
+            body.append("        if (!skipNull(in)) {\n");
+        }
+
+        var openEnum = isOpenEnum(file, field);
+        var mapEntry = getMapEntry(field);
+        if (mapEntry != null) {
+            var key = mapEntry.getField(0);
+            var value = mapEntry.getField(1);
+            var valueOpenEnum = isOpenEnum(file, value);
+            var put = valueOpenEnum ? "put" + name + "Value" : "put" + name;
+            body.append(indent).append("in.beginObject();\n");
+            body.append(indent).append("while (in.hasNext()) {\n");
+            body.append(indent).append("    ").append(getBoxedType(file, key, false)).append(" key = ")
+                    .append(getKeyFromString(key, "in.nextName()")).append(";\n");
+            body.append(indent).append("    builder.").append(put).append("(key, ")
+                    .append(getReadValue(file, value, valueOpenEnum)).append(");\n");
+            body.append(indent).append("}\n");
+            body.append(indent).append("in.endObject();\n");
+        } else if (field.getLabel() == Label.LABEL_REPEATED) {
+            var add = "add" + name + (openEnum ? "Value" : "");
+            body.append(indent).append("in.beginArray();\n");
+            body.append(indent).append("while (in.hasNext()) {\n");
+            body.append(indent).append("    builder.").append(add).append("(")
+                    .append(getReadValue(file, field, openEnum)).append(");\n");
+            body.append(indent).append("}\n");
+            body.append(indent).append("in.endArray();\n");
+        } else {
+            var set = "set" + name + (openEnum ? "Value" : "");
+            body.append(indent).append("builder.").append(set).append("(").append(getReadValue(file, field, openEnum))
+                    .append(");\n");
+        }
+
+        if (nullable) {
+            body.append("        }\n");
+        }
+        body.append("        break;\n");
+    }
+
+    private String getReadValue(FileDescriptorProto file, FieldDescriptorProto field, boolean openEnum) {
+        switch (field.getType()) {
+        case TYPE_INT32:
+        case TYPE_SINT32:
+        case TYPE_SFIXED32:
+            return "in.nextInt()";
+        case TYPE_UINT32:
+        case TYPE_FIXED32:
+            return "readUint32(in)";
+        case TYPE_INT64:
+        case TYPE_SINT64:
+        case TYPE_SFIXED64:
+            return "in.nextLong()";
+        case TYPE_UINT64:
+        case TYPE_FIXED64:
+            return "readUint64(in)";
+        case TYPE_FLOAT:
+            return "(float) readDouble(in)";
+        case TYPE_DOUBLE:
+            return "readDouble(in)";
+        case TYPE_BOOL:
+            return "in.nextBoolean()";
+        case TYPE_STRING:
+            return "in.nextString()";
+        case TYPE_BYTES:
+            return "readBytes(in)";
+        case TYPE_ENUM:
+            var enumType = getJavaType(file, field);
+            var number = "readEnumNumber(in, " + enumType + ".getDescriptor())";
+            if (openEnum) {
+                return number;
+            } else {
+                return "requireEnum(" + enumType + ".forNumber(" + number + "))";
+            }
+        default:
+            var messageType = getJavaType(file, field);
+            if (isDelegated(file, field)) {
+                return "readWithJsonFormat(in, " + messageType + ".newBuilder()).build()";
+            } else {
+                return getReadMethod(field.getTypeName()) + "(in)";
+            }
+        }
+    }
+
+    private void addHelpers(SourceBuilder jsource, boolean delegates) {
+        var msource = jsource.addMethod("writeFloat");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.addArg("JsonWriter", "out");
+        msource.addArg("float", "value");
+        msource.addThrows("IOException");
+        msource.body().append("if (Float.isNaN(value)) {\n");
+        msource.body().append("    out.value(\"NaN\");\n");
+        msource.body().append("} else if (Float.isInfinite(value)) {\n");
+        msource.body().append("    out.value(value > 0 ? \"Infinity\" : \"-Infinity\");\n");
+        msource.body().append("} else {\n");
+        msource.body().append("    out.value(Float.valueOf(value));\n");
+        msource.body().append("}\n");
+
+        msource = jsource.addMethod("writeDouble");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.addArg("JsonWriter", "out");
+        msource.addArg("double", "value");
+        msource.addThrows("IOException");
+        msource.body().append("if (Double.isNaN(value)) {\n");
+        msource.body().append("    out.value(\"NaN\");\n");
+        msource.body().append("} else if (Double.isInfinite(value)) {\n");
+        msource.body().append("    out.value(value > 0 ? \"Infinity\" : \"-Infinity\");\n");
+        msource.body().append("} else {\n");
+        msource.body().append("    out.value(value);\n");
+        msource.body().append("}\n");
+
+        msource = jsource.addMethod("writeEnum");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.addArg("JsonWriter", "out");
+        msource.addArg("Enum<?>", "value");
+        msource.addArg("int", "number");
+        msource.addThrows("IOException");
+        msource.body().append("if (value != null) {\n");
+        msource.body().append("    out.value(value.name());\n");
+        msource.body().append("} else {\n");
+        msource.body().append("    out.value(number);\n");
+        msource.body().append("}\n");
+
+        msource = jsource.addMethod("skipNull");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.setReturn("boolean");
+        msource.addArg("JsonReader", "in");
+        msource.addThrows("IOException");
+        msource.body().append("if (in.peek() == JsonToken.NULL) {\n");
+        msource.body().append("    in.nextNull();\n");
+        msource.body().append("    return true;\n");
+        msource.body().append("}\n");
+        msource.body().append("return false;\n");
+
+        msource = jsource.addMethod("readUint32");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.setReturn("int");
+        msource.addArg("JsonReader", "in");
+        msource.addThrows("IOException");
+        msource.body().append("long value = in.nextLong();\n");
+        msource.body().append("if (value < 0 || value > 0xFFFFFFFFL) {\n");
+        msource.body().append("    throw new MalformedJsonException(\"Out of range for uint32: \" + value);\n");
+        msource.body().append("}\n");
+        msource.body().append("return (int) value;\n");
+
+        msource = jsource.addMethod("readUint64");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.setReturn("long");
+        msource.addArg("JsonReader", "in");
+        msource.addThrows("IOException");
+        msource.body().append("BigInteger value = new BigDecimal(in.nextString()).toBigIntegerExact();\n");
+        msource.body().append("if (value.signum() < 0 || value.bitLength() > 64) {\n");
+        msource.body().append("    throw new MalformedJsonException(\"Out of range for uint64: \" + value);\n");
+        msource.body().append("}\n");
+        msource.body().append("return value.longValue();\n");
+
+        msource = jsource.addMethod("readDouble");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.setReturn("double");
+        msource.addArg("JsonReader", "in");
+        msource.addThrows("IOException");
+        msource.body().append("String value = in.nextString();\n");
+        msource.body().append("switch (value) {\n");
+        msource.body().append("case \"NaN\":\n");
+        msource.body().append("    return Double.NaN;\n");
+        msource.body().append("case \"Infinity\":\n");
+        msource.body().append("    return Double.POSITIVE_INFINITY;\n");
+        msource.body().append("case \"-Infinity\":\n");
+        msource.body().append("    return Double.NEGATIVE_INFINITY;\n");
+        msource.body().append("default:\n");
+        msource.body().append("    return Double.parseDouble(value);\n");
+        msource.body().append("}\n");
+
+        msource = jsource.addMethod("readBytes");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.setReturn("ByteString");
+        msource.addArg("JsonReader", "in");
+        msource.addThrows("IOException");
+        msource.body().append("String value = in.nextString();\n");
+        msource.body().append("if (value.indexOf('-') >= 0 || value.indexOf('_') >= 0) {\n");
+        msource.body().append("    return ByteString.copyFrom(Base64.getUrlDecoder().decode(value));\n");
+        msource.body().append("}\n");
+        msource.body().append("return ByteString.copyFrom(Base64.getDecoder().decode(value));\n");
+
+        msource = jsource.addMethod("readEnumNumber");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.setReturn("int");
+        msource.addArg("JsonReader", "in");
+        msource.addArg("EnumDescriptor", "descriptor");
+        msource.addThrows("IOException");
+        msource.body().append("if (in.peek() == JsonToken.NUMBER) {\n");
+        msource.body().append("    return in.nextInt();\n");
+        msource.body().append("}\n");
+        msource.body().append("String name = in.nextString();\n");
+        msource.body().append("EnumValueDescriptor value = descriptor.findValueByName(name);\n");
+        msource.body().append("if (value == null) {\n");
+        msource.body().append("    throw new MalformedJsonException(\n");
+        msource.body().append("            \"Invalid value for enum \" + descriptor.getFullName() + \": \" + name);\n");
+        msource.body().append("}\n");
+        msource.body().append("return value.getNumber();\n");
+
+        msource = jsource.addMethod("requireEnum");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.setTypeParameters("<E extends Enum<E>>");
+        msource.setReturn("E");
+        msource.addArg("E", "value");
+        msource.addThrows("IOException");
+        msource.body().append("if (value == null) {\n");
+        msource.body().append("    throw new MalformedJsonException(\"Unknown enum value\");\n");
+        msource.body().append("}\n");
+        msource.body().append("return value;\n");
+
+        if (delegates) {
+            jsource.addImport("com.google.gson.JsonParser");
+            jsource.addImport("com.google.protobuf.Message");
+            jsource.addImport("com.google.protobuf.MessageOrBuilder");
+            jsource.addImport("com.google.protobuf.util.JsonFormat");
+            jsource.addConstant("JsonFormat.Printer", "PRINTER", "JsonFormat.printer().omittingInsignificantWhitespace()");
+            jsource.addConstant("JsonFormat.Parser", "PARSER", "JsonFormat.parser()");
+
+            msource = jsource.addMethod("writeWithJsonFormat");
+            msource.setPrivate(true);
+            msource.setStatic(true);
+            msource.addArg("JsonWriter", "out");
+            msource.addArg("MessageOrBuilder", "message");
+            msource.addThrows("IOException");
+            msource.body().append("out.jsonValue(PRINTER.print(message));\n");
+
+            msource = jsource.addMethod("readWithJsonFormat");
+            msource.setPrivate(true);
+            msource.setStatic(true);
+            msource.setTypeParameters("<B extends Message.Builder>");
+            msource.setReturn("B");
+            msource.addArg("JsonReader", "in");
+            msource.addArg("B", "builder");
+            msource.addThrows("IOException");
+            msource.body().append("PARSER.merge(JsonParser.parseReader(in).toString(), builder);\n");
+            msource.body().append("return builder;\n");
+        }
+    }
+
+    /**
+     * Returns whether values of a field are converted by {@code JsonFormat},
+     * because their type is a message of another file.
+     */
+    private boolean isDelegated(FileDescriptorProto file, FieldDescriptorProto field) {
+        if (field.getType() != Type.TYPE_MESSAGE && field.getType() != Type.TYPE_GROUP) {
+            return false;
+        }
+        var mapEntry = getMapEntry(field);
+        if (mapEntry != null) {
+            return isDelegated(file, mapEntry.getField(1));
+        }
+        return fileForType.get(field.getTypeName()) != file;
+    }
+
+    /**
+     * Returns whether enum values of a field are accessed by number, which protoc
+     * does for fields of proto3 files.
+     */
+    private static boolean isOpenEnum(FileDescriptorProto file, FieldDescriptorProto field) {
+        return field.getType() == Type.TYPE_ENUM && file.getSyntax().equals("proto3");
+    }
+
+    private DescriptorProto getMapEntry(FieldDescriptorProto field) {
+        if (field.getLabel() != Label.LABEL_REPEATED || field.getType() != Type.TYPE_MESSAGE) {
+            return null;
+        }
+        var messageType = messageTypes.get(field.getTypeName());
+        return (messageType != null && messageType.getOptions().getMapEntry()) ? messageType : null;
+    }
+
+    /**
+     * Returns the name of a message or enum type, relative to the package of the
+     * generated codec if the type is defined in the same file.
+     */
+    private String getJavaType(FileDescriptorProto file, FieldDescriptorProto field) {
+        var typeFile = fileForType.get(field.getTypeName());
+        var javaName = javaNames.get(field.getTypeName());
+        if (typeFile == file) {
+            return javaName;
+        }
+        return getJavaPackage(typeFile) + "." + javaName;
+    }
+
+    private String getBoxedType(FileDescriptorProto file, FieldDescriptorProto field, boolean openEnum) {
+        switch (field.getType()) {
+        case TYPE_INT32:
+        case TYPE_SINT32:
+        case TYPE_SFIXED32:
+        case TYPE_UINT32:
+        case TYPE_FIXED32:
+            return "Integer";
+        case TYPE_INT64:
+        case TYPE_SINT64:
+        case TYPE_SFIXED64:
+        case TYPE_UINT64:
+        case TYPE_FIXED64:
+            return "Long";
+        case TYPE_FLOAT:
+            return "Float";
+        case TYPE_DOUBLE:
+            return "Double";
+        case TYPE_BOOL:
+            return "Boolean";
+        case TYPE_STRING:
+            return "String";
+        case TYPE_BYTES:
+            return "ByteString";
+        case TYPE_ENUM:
+            return openEnum ? "Integer" : getJavaType(file, field);
+        default:
+            return getJavaType(file, field);
+        }
+    }
+
+    private static String getKeyToString(FieldDescriptorProto key, String value) {
+        switch (key.getType()) {
+        case TYPE_STRING:
+            return value;
+        case TYPE_UINT32:
+        case TYPE_FIXED32:
+            return "Integer.toUnsignedString(" + value + ")";
+        case TYPE_UINT64:
+        case TYPE_FIXED64:
+            return "Long.toUnsignedString(" + value + ")";
+        default:
+            return "String.valueOf(" + value + ")";
+        }
+    }
+
+    private static String getKeyFromString(FieldDescriptorProto key, String value) {
+        switch (key.getType()) {
+        case TYPE_STRING:
+            return value;
+        case TYPE_BOOL:
+            return "Boolean.parseBoolean(" + value + ")";
+        case TYPE_UINT32:
+        case TYPE_FIXED32:
+            return "Integer.parseUnsignedInt(" + value + ")";
+        case TYPE_UINT64:
+        case TYPE_FIXED64:
+            return "Long.parseUnsignedLong(" + value + ")";
+        case TYPE_INT64:
+        case TYPE_SINT64:
+        case TYPE_SFIXED64:
+            return "Long.parseLong(" + value + ")";
+        default:
+            return "Integer.parseInt(" + value + ")";
+        }
+    }
+
+    private String getReadMethod(String typeName) {
+        var javaName = javaNames.get(typeName);
+        var file = fileForType.get(typeName);
+        if (!file.getOptions().getJavaMultipleFiles()) {
+            javaName = javaName.substring(javaName.indexOf('.') + 1);
+        }
+        return "read" + javaName.replace('.', '_');
+    }
+
+    /**
+     * Returns the outer classname that protoc uses for a file. Unlike the
+     * derivation used for generated services, this follows protoc's rules for
+     * files without a {@code java_outer_classname} option: the file name is
+     * camel-cased, and an {@code OuterClass} suffix is added when a type of the
+     * file has the same name.
+     */
+    static String getOuterClassname(FileDescriptorProto file) {
+        if (file.getOptions().hasJavaOuterClassname()) {
+            return file.getOptions().getJavaOuterClassname();
+        } else {
+            var name = new java.io.File(file.getName()).toPath().getFileName().toString().replace(".proto", "");
+            var outerClassname = ServiceGenerator.toCamelCase(name, true);
+            // protoc avoids a clash with a type of the file
+            if (hasConflictingName(file, outerClassname)) {
+                outerClassname += "OuterClass";
+            }
+            return outerClassname;
+        }
+    }
+
+    private static boolean hasConflictingName(FileDescriptorProto file, String name) {
+        for (var enumType : file.getEnumTypeList()) {
+            if (enumType.getName().equals(name)) {
+                return true;
+            }
+        }
+        for (var service : file.getServiceList()) {
+            if (service.getName().equals(name)) {
+                return true;
+            }
+        }
+        for (var messageType : file.getMessageTypeList()) {
+            if (hasConflictingName(messageType, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasConflictingName(DescriptorProto messageType, String name) {
+        if (messageType.getName().equals(name)) {
+            return true;
+        }
+        for (var enumType : messageType.getEnumTypeList()) {
+            if (enumType.getName().equals(name)) {
+                return true;
+            }
+        }
+        for (var nestedType : messageType.getNestedTypeList()) {
+            if (hasConflictingName(nestedType, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getJavaPackage(FileDescriptorProto file) {
+        var javaPackage = file.getOptions().getJavaPackage();
+        return javaPackage.isEmpty() ? file.getPackage() : javaPackage;
+    }
+
+    /**
+     * Returns the name that protoc uses in the accessors of a field.
+     */
+    private static String getCapitalizedName(FieldDescriptorProto field) {
+        var name = field.getType() == Type.TYPE_GROUP
+                ? field.getTypeName().substring(field.getTypeName().lastIndexOf('.') + 1)
+                : field.getName();
+        var capitalized = ServiceGenerator.toCamelCase(name, true);
+        return FORBIDDEN_NAMES.contains(capitalized) ? capitalized + "_" : capitalized;
+    }
+
+    private static String getJsonName(FieldDescriptorProto field) {
+        if (field.hasJsonName()) {
+            return field.getJsonName();
+        }
+        var buf = new StringBuilder();
+        var capitalizeNext = false;
+        for (var c : field.getName().toCharArray()) {
+            if (c == '_') {
+                capitalizeNext = true;
+            } else if (capitalizeNext) {
+                buf.append(Character.toUpperCase(c));
+                capitalizeNext = false;
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,278 @@
+package org.yamcs.maven;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Machine-wide cache of {@code .proto} files contained in jar files.
+ * <p>
+ * For each distinct jar, identified by its checksum, the cache keeps a list of
+ * the {@code .proto} entries, together with their CRC and size as found in the
+ * central directory of the jar. Entries are only extracted when they are
+ * requested, into a directory named after the checksum of the jar, so that the
+ * same file is only extracted once regardless of the module or path it is
+ * referenced from.
+ * <p>
+ * An index keyed by jar path, size and modification time allows to find the
+ * checksum of an unchanged jar without opening it. This also records jars that
+ * contain no {@code .proto} files at all, so that they are skipped on
+ * subsequent builds.
+ * <p>
+ * The entry list and the extraction directory of a jar are touched whenever the
+ * jar is looked up, so that extractions of jars that are no longer used are
+ * removed by {@link #prune(int)}.
+ */
+class ProtoExtractionCache {
+
+    private static final Pattern SHA1_PATTERN = Pattern.compile("[0-9a-f]{40}");
+    private static final String INDEX_FILE = "index.txt";
+
+    private final File directory;
+    private final File indexFile;
+    private final FingerprintIndex index;
+    private final FingerprintIndex updates = new FingerprintIndex();
+
+    ProtoExtractionCache(File directory) {
+        this.directory = directory;
+        indexFile = new File(directory, INDEX_FILE);
+        index = FingerprintIndex.load(indexFile);
+    }
+
+    /**
+     * The {@code .proto} entries of a jar.
+     */
+    static final class Extraction {
+
+        final File jarFile;
+
+        /**
+         * Directory where entries of this jar are extracted.
+         */
+        final File directory;
+
+        /**
+         * Hash over the names, CRCs and sizes of all {@code .proto} entries. This is
+         * the empty string if the jar does not contain any.
+         */
+        final String protoHash;
+
+        private final File entriesFile;
+        private SortedMap<String, String> entries;
+
+        Extraction(File jarFile, File directory, String protoHash) {
+            this.jarFile = jarFile;
+            this.directory = directory;
+            this.protoHash = protoHash;
+            entriesFile = new File(directory.getPath() + ".entries");
+        }
+
+        boolean isEmpty() {
+            return protoHash.isEmpty();
+        }
+
+        /**
+         * Returns whether this jar contains a {@code .proto} file of the given name.
+         */
+        synchronized boolean contains(String name) {
+            if (isEmpty()) {
+                return false;
+            }
+            if (entries == null) {
+                entries = FingerprintIndex.load(entriesFile).getEntries("");
+            }
+            return entries.containsKey(name);
+        }
+    }
+
+    /**
+     * Returns the {@code .proto} entries of the given jar, if the jar is unchanged
+     * since it was last scanned. The jar is not opened.
+     *
+     * @return the cached entries, or {@code null} if the jar needs to be scanned.
+     */
+    synchronized Extraction lookup(File jarFile) {
+        // Format: size mtime checksum protoHash
+        var value = index.get(jarFile.getAbsolutePath());
+        if (value != null && value.startsWith(getStat(jarFile) + " ")) {
+            var parts = value.split(" ", -1);
+            if (parts.length == 4) {
+                var extraction = new Extraction(jarFile, new File(directory, parts[2]), parts[3]);
+                if (extraction.isEmpty()) {
+                    return extraction;
+                } else if (extraction.entriesFile.isFile()) {
+                    CachePruner.touch(extraction.entriesFile);
+                    CachePruner.touch(extraction.directory);
+                    return extraction;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the {@code .proto} entries of the given jar, scanning the jar first
+     * if it is not yet cached. This method may be called concurrently for
+     * different jars.
+     */
+    Extraction scan(File jarFile) {
+        var extraction = lookup(jarFile);
+        if (extraction != null) {
+            return extraction;
+        }
+
+        var stat = getStat(jarFile);
+        var checksum = getChecksum(jarFile);
+        var entriesFile = new File(directory, checksum + ".entries");
+        SortedMap<String, String> entries;
+        if (entriesFile.isFile()) {
+            CachePruner.touch(entriesFile);
+            CachePruner.touch(new File(directory, checksum));
+            entries = FingerprintIndex.load(entriesFile).getEntries("");
+        } else {
+            entries = listEntries(jarFile);
+            if (!entries.isEmpty()) {
+                var entriesIndex = new FingerprintIndex();
+                entries.forEach(entriesIndex::put);
+                entriesIndex.save(entriesFile);
+            }
+        }
+        var protoHash = hashOf(entries);
+
+        var key = jarFile.getAbsolutePath();
+        var value = stat + " " + checksum + " " + protoHash;
+        synchronized (this) {
+            index.put(key, value);
+            updates.put(key, value);
+        }
+        return new Extraction(jarFile, new File(directory, checksum), protoHash);
+    }
+
+    /**
+     * Returns the extracted file for an entry of a jar, extracting it first if
+     * needed. The file is first extracted to a temporary file which is then
+     * renamed, so that a cached file is either complete or absent.
+     */
+    File getFile(Extraction extraction, String name) {
+        var targetFile = new File(extraction.directory, name);
+        if (targetFile.isFile()) {
+            return targetFile;
+        }
+        Path tmpFile = null;
+        try (FileSystem jar = FileSystems.newFileSystem(extraction.jarFile.toPath(), (ClassLoader) null)) {
+            Files.createDirectories(targetFile.getParentFile().toPath());
+            tmpFile = Files.createTempFile(targetFile.getParentFile().toPath(), targetFile.getName(), ".tmp");
+            Files.copy(jar.getPath(name), tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpFile, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            tmpFile = null;
+            return targetFile;
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to unpack " + name + " from " + extraction.jarFile, e);
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the entry lists and extracted files of jars that were not looked up
+     * within the given number of days. Index entries that refer to them are kept,
+     * such jars are scanned again when they are next used.
+     */
+    void prune(int retentionDays) {
+        CachePruner.prune(directory, retentionDays, INDEX_FILE);
+    }
+
+    /**
+     * Persists index entries that were added since this cache was loaded. Entries
+     * added concurrently by other builds are preserved.
+     */
+    synchronized void save() {
+        if (!updates.isEmpty()) {
+            var current = FingerprintIndex.load(indexFile);
+            current.putAll(updates);
+            current.save(indexFile);
+        }
+    }
+
+    private static String getStat(File jarFile) {
+        return jarFile.length() + " " + jarFile.lastModified();
+    }
+
+    /**
+     * Returns the checksum of a jar. Jars from a Maven repository come with a
+     * checksum file, which saves reading the whole jar.
+     */
+    private static String getChecksum(File jarFile) {
+        var sha1File = new File(jarFile.getParentFile(), jarFile.getName() + ".sha1");
+        if (sha1File.isFile() && sha1File.lastModified() >= jarFile.lastModified()) {
+            try {
+                var content = Files.readString(sha1File.toPath(), UTF_8).trim();
+                var sha1 = content.split("\\s+")[0].toLowerCase();
+                if (SHA1_PATTERN.matcher(sha1).matches()) {
+                    return "sha1-" + sha1;
+                }
+            } catch (IOException e) {
+                // Fall through
+            }
+        }
+        try {
+            return "sha256-" + FingerprintIndex.sha256(jarFile);
+        } catch (IOException e) {
+            throw new MojoInitializationException("Not a readable JAR artifact: " + jarFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Lists the {@code .proto} entries of a jar. Only the central directory is
+     * read, entries are not decompressed.
+     *
+     * @return entry names mapped to their CRC and size.
+     */
+    private static SortedMap<String, String> listEntries(File jarFile) {
+        var result = new TreeMap<String, String>();
+        try (FileSystem jar = FileSystems.newFileSystem(jarFile.toPath(), (ClassLoader) null)) {
+            for (Path root : jar.getRootDirectories()) {
+                List<Path> entries;
+                try (Stream<Path> stream = Files.walk(root)) {
+                    entries = stream
+                            .filter(entry -> entry.toString().endsWith(".proto") && Files.isRegularFile(entry))
+                            .collect(Collectors.toList());
+                }
+                for (Path entry : entries) {
+                    var crc = (Long) Files.getAttribute(entry, "zip:crc");
+                    result.put(root.relativize(entry).toString(), Long.toHexString(crc) + " " + Files.size(entry));
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoInitializationException("Not a readable JAR artifact: " + jarFile.getAbsolutePath(), e);
+        }
+        return result;
+    }
+
+    private static String hashOf(Map<String, String> entries) {
+        if (entries.isEmpty()) {
+            return "";
+        }
+        var buf = new StringBuilder();
+        for (var entry : entries.entrySet()) {
+            buf.append(entry.getKey()).append('\n').append(entry.getValue()).append('\n');
+        }
+        return FingerprintIndex.sha256(buf.toString().getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,258 @@
+package org.yamcs.maven;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Import relations between the {@code .proto} files of a source root. Files are
+ * identified by their path relative to the source root, using forward slashes,
+ * which is also how they are referenced in {@code import} statements.
+ */
+class ProtoImportGraph {
+
+    private static final Pattern IMPORT_PATTERN = Pattern.compile(
+            "(?<![\\w.])import\\s+(?:public\\s+|weak\\s+)?\"([^\"]+)\"\\s*;");
+
+    private final Map<String, Set<String>> imports = new TreeMap<>();
+    private final Map<String, Set<String>> importedBy = new HashMap<>();
+
+    /**
+     * Builds the import graph of the given files.
+     *
+     * @param sourceRoot
+     *                   the root directory against which imports are resolved.
+     * @param protoFiles
+     *                   the proto files contained in the source root.
+     */
+    static ProtoImportGraph build(File sourceRoot, Collection<File> protoFiles) {
+        var graph = new ProtoImportGraph();
+        for (var protoFile : protoFiles) {
+            var name = toName(sourceRoot, protoFile);
+            try {
+                var source = Files.readString(protoFile.toPath(), UTF_8);
+                graph.addFile(name, parseImports(source));
+            } catch (IOException e) {
+                throw new MojoInitializationException("Unable to read " + protoFile, e);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Returns the name by which a proto file is referenced from other proto files.
+     */
+    static String toName(File sourceRoot, File protoFile) {
+        return sourceRoot.toPath().relativize(protoFile.toPath()).toString().replace('\\', '/');
+    }
+
+    /**
+     * Extracts the imported file names from the text of a proto file.
+     */
+    static List<String> parseImports(String source) {
+        var result = new ArrayList<String>();
+        var matcher = IMPORT_PATTERN.matcher(stripComments(source));
+        while (matcher.find()) {
+            result.add(matcher.group(1));
+        }
+        return result;
+    }
+
+    /**
+     * Blanks out comments, taking care not to interpret comment markers that appear
+     * inside string literals.
+     */
+    private static String stripComments(String source) {
+        var buf = new StringBuilder(source.length());
+        int n = source.length();
+        for (int i = 0; i < n; i++) {
+            char c = source.charAt(i);
+            if (c == '"' || c == '\'') {
+                int end = i + 1;
+                while (end < n && source.charAt(end) != c && source.charAt(end) != '\n') {
+                    if (source.charAt(end) == '\\') {
+                        end++;
+                    }
+                    end++;
+                }
+                end = Math.min(end, n - 1);
+                buf.append(source, i, end + 1);
+                i = end;
+            } else if (c == '/' && i + 1 < n && source.charAt(i + 1) == '/') {
+                while (i < n && source.charAt(i) != '\n') {
+                    i++;
+                }
+                if (i < n) {
+                    buf.append('\n');
+                }
+            } else if (c == '/' && i + 1 < n && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                end = (end == -1) ? n : end + 2;
+                for (int j = i; j < end; j++) {
+                    buf.append(source.charAt(j) == '\n' ? '\n' : ' ');
+                }
+                i = end - 1;
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    private void addFile(String name, Collection<String> fileImports) {
+        imports.put(name, new TreeSet<>(fileImports));
+        for (var imported : fileImports) {
+            importedBy.computeIfAbsent(imported, x -> new TreeSet<>()).add(name);
+        }
+    }
+
+    /**
+     * Returns the names of all files in this graph.
+     */
+    Set<String> getFiles() {
+        return Collections.unmodifiableSet(imports.keySet());
+    }
+
+    /**
+     * Returns the direct imports of a file. These may refer to files outside of
+     * this graph.
+     */
+    Set<String> getImports(String name) {
+        var result = imports.get(name);
+        return result != null ? result : Collections.emptySet();
+    }
+
+    /**
+     * Returns the given files, together with all files of this graph that import
+     * any of them, directly or transitively.
+     */
+    Set<String> getReverseClosure(Collection<String> names) {
+        var result = new TreeSet<String>();
+        var queue = new ArrayDeque<String>(names);
+        while (!queue.isEmpty()) {
+            var name = queue.poll();
+            if (result.add(name)) {
+                var dependents = importedBy.get(name);
+                if (dependents != null) {
+                    queue.addAll(dependents);
+                }
+            }
+        }
+        result.retainAll(imports.keySet());
+        return result;
+    }
+
+    /**
+     * Splits the given files into at most {@code shardCount} groups of similar
+     * weight that can be compiled independently.
+     * <p>
+     * Files that are connected through imports are kept together, so that they
+     * are parsed only once. If that does not allow for a balanced split (typically
+     * because most files share a common import), files are distributed
+     * individually instead.
+     *
+     * @param names
+     *                   files of this graph.
+     * @param shardCount
+     *                   the maximum number of groups.
+     * @param weight
+     *                   estimated compilation cost of a file.
+     * @return non-empty groups of files.
+     */
+    List<List<String>> partition(Collection<String> names, int shardCount, ToLongFunction<String> weight) {
+        var components = getConnectedComponents(names);
+
+        long totalWeight = 0;
+        long maxComponentWeight = 0;
+        for (var component : components) {
+            long componentWeight = component.stream().mapToLong(weight).sum();
+            totalWeight += componentWeight;
+            maxComponentWeight = Math.max(maxComponentWeight, componentWeight);
+        }
+
+        List<List<String>> units = components;
+        if (maxComponentWeight > totalWeight / shardCount) {
+            units = new ArrayList<>();
+            for (var name : new TreeSet<>(names)) {
+                units.add(List.of(name));
+            }
+        }
+
+        // Greedily assign the heaviest units to the lightest shard
+        var unitWeights = new HashMap<List<String>, Long>();
+        for (var unit : units) {
+            unitWeights.put(unit, unit.stream().mapToLong(weight).sum());
+        }
+        units.sort(Comparator.comparing((List<String> unit) -> unitWeights.get(unit)).reversed()
+                .thenComparing(unit -> unit.get(0)));
+
+        var shards = new ArrayList<List<String>>();
+        var shardWeights = new long[Math.min(shardCount, units.size())];
+        for (int i = 0; i < shardWeights.length; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (var unit : units) {
+            int lightest = 0;
+            for (int i = 1; i < shardWeights.length; i++) {
+                if (shardWeights[i] < shardWeights[lightest]) {
+                    lightest = i;
+                }
+            }
+            shards.get(lightest).addAll(unit);
+            shardWeights[lightest] += unitWeights.get(unit);
+        }
+        return shards;
+    }
+
+    /**
+     * Groups the given files such that files that import each other, directly or
+     * through other files of the group, end up in the same group.
+     */
+    private List<List<String>> getConnectedComponents(Collection<String> names) {
+        var members = new TreeSet<>(names);
+        var visited = new HashSet<String>();
+        var components = new ArrayList<List<String>>();
+        for (var name : members) {
+            if (!visited.add(name)) {
+                continue;
+            }
+            var component = new ArrayList<String>();
+            var queue = new ArrayDeque<String>();
+            queue.add(name);
+            while (!queue.isEmpty()) {
+                var current = queue.poll();
+                component.add(current);
+
+                var neighbours = new ArrayList<>(getImports(current));
+                var dependents = importedBy.get(current);
+                if (dependents != null) {
+                    neighbours.addAll(dependents);
+                }
+                for (var neighbour : neighbours) {
+                    if (members.contains(neighbour) && visited.add(neighbour)) {
+                        queue.add(neighbour);
+                    }
+                }
+            }
+            Collections.sort(component);
+            components.add(component);
+        }
+        return components;
+    }
+}
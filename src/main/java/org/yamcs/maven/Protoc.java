@@ -13,6 +13,7 @@ import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.CommandLineUtils.StringStreamConsumer;
 import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
 
 /**
  * This class represents an invokable configuration of the {@code protoc}
@@ -36,6 +37,12 @@ public class Protoc {
      */
     private final List<File> protoPathElements;
 
+    /**
+     * Descriptor sets providing definitions that may be imported, as an
+     * alternative to the proto path.
+     */
+    private final List<File> descriptorSetInFiles;
+
     /**
      * A set of protobuf definitions to process.
      */
@@ -48,6 +55,11 @@ public class Protoc {
 
     private final File pluginExecutable;
 
+    /**
+     * Parameter passed to the plugin, or {@code null} if none.
+     */
+    private final String pluginParameter;
+
     private final File descriptorSetFile;
 
     private final boolean includeImportsInDescriptorSet;
@@ -73,6 +85,9 @@ public class Protoc {
      * @param protoPath
      *                                         a set of directories in which to
      *                                         search for definition imports.
+     * @param descriptorSetInFiles
+     *                                         a set of descriptor sets in which to
+     *                                         search for definition imports.
      * @param protoFiles
      *                                         a set of protobuf definitions to
      *                                         process.
@@ -93,6 +108,9 @@ public class Protoc {
      *                                         descriptor set.
      * @param pluginExecutable
      *                                         location of protoc plugin executable
+     * @param pluginParameter
+     *                                         parameter passed to the plugin, or
+     *                                         {@code null} if none.
      * @param tempDirectory
      *                                         a directory where temporary files
      *                                         will be generated.
@@ -100,12 +118,14 @@ public class Protoc {
     private Protoc(
             String executable,
             List<File> protoPath,
+            List<File> descriptorSetInFiles,
             List<File> protoFiles,
             File javaOutputDirectory,
             File descriptorSetFile,
             boolean includeImportsInDescriptorSet,
             boolean includeSourceInfoInDescriptorSet,
-            File pluginExecutable) {
+            File pluginExecutable,
+            String pluginParameter) {
         if (executable == null) {
             throw new MojoConfigurationException("'executable' is null");
         }
@@ -117,12 +137,14 @@ public class Protoc {
         }
         this.executable = executable;
         this.protoPathElements = protoPath;
+        this.descriptorSetInFiles = descriptorSetInFiles;
         this.protoFiles = protoFiles;
         this.javaOutputDirectory = javaOutputDirectory;
         this.descriptorSetFile = descriptorSetFile;
         this.includeImportsInDescriptorSet = includeImportsInDescriptorSet;
         this.includeSourceInfoInDescriptorSet = includeSourceInfoInDescriptorSet;
         this.pluginExecutable = pluginExecutable;
+        this.pluginParameter = pluginParameter;
         this.error = new StringStreamConsumer();
         this.output = new StringStreamConsumer();
     }
@@ -140,12 +162,31 @@ public class Protoc {
      *                              if the execution was interrupted by the user.
      */
     public int execute(Log log) throws CommandLineException, InterruptedException {
+        return execute(log, error);
+    }
+
+    /**
+     * Invokes the {@code protoc} compiler using the configuration specified at
+     * construction, passing error output to the given consumer as it is produced.
+     * Error output is then not available from {@link #getError()}.
+     *
+     * @param log
+     *                      logger instance.
+     * @param errorConsumer
+     *                      consumer of error output lines.
+     * @return The exit status of {@code protoc}.
+     * @throws CommandLineException
+     *                              if command line environment cannot be set up.
+     * @throws InterruptedException
+     *                              if the execution was interrupted by the user.
+     */
+    public int execute(Log log, StreamConsumer errorConsumer) throws CommandLineException, InterruptedException {
         Commandline cl = new Commandline();
         cl.setExecutable(executable);
         String[] args = buildProtocCommand().toArray(new String[] {});
         cl.addArguments(args);
 
-        return CommandLineUtils.executeCommandLine(cl, null, output, error);
+        return CommandLineUtils.executeCommandLine(cl, null, output, errorConsumer);
     }
 
     /**
@@ -159,10 +200,19 @@ public class Protoc {
         for (File protoPathElement : protoPathElements) {
             command.add("--proto_path=" + protoPathElement);
         }
+        if (!descriptorSetInFiles.isEmpty()) {
+            command.add("--descriptor_set_in=" + join(descriptorSetInFiles.iterator(), File.pathSeparator));
+        }
         if (javaOutputDirectory != null) {
             command.add("--java_out=" + javaOutputDirectory);
-            command.add("--plugin=protoc-gen-yamcs=" + pluginExecutable);
-            command.add("--yamcs_out=" + javaOutputDirectory);
+            if (pluginExecutable != null) {
+                command.add("--plugin=protoc-gen-yamcs=" + pluginExecutable);
+                if (pluginParameter != null && !pluginParameter.isEmpty()) {
+                    command.add("--yamcs_out=" + pluginParameter + ":" + javaOutputDirectory);
+                } else {
+                    command.add("--yamcs_out=" + javaOutputDirectory);
+                }
+            }
         }
         for (File protoFile : protoFiles) {
             command.add(protoFile.toString());
@@ -196,6 +246,13 @@ public class Protoc {
                 }
             }
 
+            if (!descriptorSetInFiles.isEmpty()) {
+                log.debug(LOG_PREFIX + "Protobuf import descriptor sets:");
+                for (File descriptorSetInFile : descriptorSetInFiles) {
+                    log.debug(LOG_PREFIX + ' ' + descriptorSetInFile);
+                }
+            }
+
             if (javaOutputDirectory != null) {
                 log.debug(LOG_PREFIX + "Java output directory:");
                 log.debug(LOG_PREFIX + ' ' + javaOutputDirectory);
@@ -204,6 +261,10 @@ public class Protoc {
             if (pluginExecutable != null) {
                 log.debug(LOG_PREFIX + "Plugin executable:");
                 log.debug(LOG_PREFIX + ' ' + pluginExecutable);
+                if (pluginParameter != null) {
+                    log.debug(LOG_PREFIX + "Plugin parameter:");
+                    log.debug(LOG_PREFIX + ' ' + pluginParameter);
+                }
             }
 
             if (descriptorSetFile != null) {
@@ -249,7 +310,7 @@ public class Protoc {
      *                a UTF-8 message in system-default encoding.
      * @return the same message converted into a unicode string.
      */
-    private static String fixUnicodeOutput(String message) {
+    static String fixUnicodeOutput(String message) {
         return new String(message.getBytes(), Charset.forName("UTF-8"));
     }
 
@@ -265,10 +326,14 @@ public class Protoc {
 
         private final LinkedHashSet<File> protopathElements;
 
+        private final LinkedHashSet<File> descriptorSetInFiles;
+
         private final List<File> protoFiles;
 
         private File pluginExecutable;
 
+        private String pluginParameter;
+
         /**
          * A directory into which Java source files will be generated.
          */
@@ -290,6 +355,7 @@ public class Protoc {
             this.executable = executable;
             protoFiles = new ArrayList<>();
             protopathElements = new LinkedHashSet<>();
+            descriptorSetInFiles = new LinkedHashSet<>();
         }
 
         /**
@@ -325,6 +391,14 @@ public class Protoc {
             return this;
         }
 
+        /**
+         * Sets the parameter passed to the plugin, a comma-separated list of options.
+         */
+        public Builder setPluginParameter(String pluginParameter) {
+            this.pluginParameter = pluginParameter;
+            return this;
+        }
+
         public Builder withDescriptorSetFile(
                 File descriptorSetFile,
                 boolean includeImports,
@@ -413,6 +487,43 @@ public class Protoc {
             return this;
         }
 
+        /**
+         * Adds a descriptor set in which to search for imported definitions that are
+         * not found on the protopath.
+         *
+         * @param descriptorSetInFile
+         *                            A file containing a serialized
+         *                            {@code FileDescriptorSet}.
+         * @return The builder.
+         */
+        public Builder addDescriptorSetInFile(File descriptorSetInFile) {
+            if (descriptorSetInFile == null) {
+                throw new MojoConfigurationException("'descriptorSetInFile' is null");
+            }
+            if (!descriptorSetInFile.isFile()) {
+                throw new MojoConfigurationException(
+                        "Descriptor set is not a regular file: " + descriptorSetInFile.getAbsolutePath());
+            }
+            descriptorSetInFiles.add(descriptorSetInFile);
+            return this;
+        }
+
+        /**
+         * Adds a collection of descriptor sets.
+         *
+         * @param descriptorSetInFiles
+         *                             Files containing a serialized
+         *                             {@code FileDescriptorSet}.
+         * @return The builder.
+         * @see #addDescriptorSetInFile(File)
+         */
+        public Builder addDescriptorSetInFiles(Iterable<File> descriptorSetInFiles) {
+            for (File descriptorSetInFile : descriptorSetInFiles) {
+                addDescriptorSetInFile(descriptorSetInFile);
+            }
+            return this;
+        }
+
         /**
          * Validates the internal state for consistency and completeness.
          */
@@ -420,9 +531,9 @@ public class Protoc {
             if (protoFiles.isEmpty()) {
                 throw new MojoConfigurationException("No proto files specified");
             }
-            if (javaOutputDirectory == null) {
+            if (javaOutputDirectory == null && descriptorSetFile == null) {
                 throw new MojoConfigurationException("At least one of these properties must be set:" +
-                        " 'javaOutputDirectory'");
+                        " 'javaOutputDirectory', 'descriptorSetFile'");
             }
         }
 
@@ -436,12 +547,14 @@ public class Protoc {
             return new Protoc(
                     executable,
                     new ArrayList<>(protopathElements),
+                    new ArrayList<>(descriptorSetInFiles),
                     protoFiles,
                     javaOutputDirectory,
                     descriptorSetFile,
                     includeImportsInDescriptorSet,
                     includeSourceInfoInDescriptorSet,
-                    pluginExecutable);
+                    pluginExecutable,
+                    pluginParameter);
         }
     }
 }
@@ -0,0 +1,132 @@
+package org.yamcs.maven;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+import org.sonatype.plexus.build.incremental.BuildContext;
+
+/**
+ * Consumes the error output of {@code protoc} as it is produced. Each line is
+ * logged immediately, and diagnostics of the form
+ * {@code file.proto:line:column: message} are reported on the file that they
+ * refer to.
+ * <p>
+ * Only a bounded number of lines that do not refer to a source file are kept,
+ * so that large outputs are not held in memory.
+ */
+class ProtocDiagnostics implements StreamConsumer {
+
+    private static final Pattern DIAGNOSTIC_PATTERN = Pattern.compile("^(.+?\\.proto):(?:(\\d+):(\\d+):)?\\s*(.*)$");
+    private static final String WARNING_PREFIX = "warning:";
+    private static final int MAX_UNMATCHED_LINES = 20;
+
+    private final File protoSourceRoot;
+    private final BuildContext buildContext;
+    private final Log log;
+
+    private int errorCount;
+    private final List<String> unmatchedLines = new ArrayList<>();
+    private int unmatchedCount;
+
+    /**
+     * @param protoSourceRoot
+     *                        directory against which relative file names in
+     *                        diagnostics are resolved.
+     * @param buildContext
+     *                        the build context on which messages are reported.
+     *                        May be shared with concurrent {@code protoc} runs.
+     * @param log
+     *                        logger instance.
+     */
+    ProtocDiagnostics(File protoSourceRoot, BuildContext buildContext, Log log) {
+        this.protoSourceRoot = protoSourceRoot;
+        this.buildContext = buildContext;
+        this.log = log;
+    }
+
+    @Override
+    public synchronized void consumeLine(String line) {
+        line = Protoc.fixUnicodeOutput(line);
+        if (line.isBlank()) {
+            return;
+        }
+
+        var matcher = DIAGNOSTIC_PATTERN.matcher(line);
+        if (!matcher.matches()) {
+            log.warn("PROTOC: " + line);
+            addUnmatchedLine(line);
+            return;
+        }
+
+        var message = matcher.group(4);
+        boolean warning = message.startsWith(WARNING_PREFIX);
+        if (warning) {
+            log.warn("PROTOC: " + line);
+        } else {
+            log.error("PROTOC: " + line);
+        }
+
+        var file = resolveFile(matcher.group(1));
+        if (file == null) {
+            // For example a dependency definition
+            addUnmatchedLine(line);
+        } else if (warning) {
+            message = message.substring(WARNING_PREFIX.length()).trim();
+            addMessage(file, getInt(matcher.group(2)), getInt(matcher.group(3)), message,
+                    BuildContext.SEVERITY_WARNING);
+        } else {
+            errorCount++;
+            addMessage(file, getInt(matcher.group(2)), getInt(matcher.group(3)), message,
+                    BuildContext.SEVERITY_ERROR);
+        }
+    }
+
+    private void addUnmatchedLine(String line) {
+        unmatchedCount++;
+        if (unmatchedLines.size() < MAX_UNMATCHED_LINES) {
+            unmatchedLines.add(line);
+        }
+    }
+
+    private static int getInt(String group) {
+        return (group != null) ? Integer.parseInt(group) : 0;
+    }
+
+    private void addMessage(File file, int line, int column, String message, int severity) {
+        // The build context is shared with concurrent protoc runs
+        synchronized (buildContext) {
+            buildContext.addMessage(file, line, column, message, severity, null);
+        }
+    }
+
+    private File resolveFile(String name) {
+        var file = new File(name);
+        if (!file.isAbsolute()) {
+            file = new File(protoSourceRoot, name);
+        }
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Returns the number of errors that were reported on a specific file.
+     */
+    synchronized int getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Returns the first lines of output that could not be attributed to a
+     * specific file.
+     */
+    synchronized String getUnmatchedOutput() {
+        var buf = new StringBuilder(String.join("\n", unmatchedLines));
+        if (unmatchedCount > unmatchedLines.size()) {
+            buf.append("\n... ").append(unmatchedCount - unmatchedLines.size()).append(" more line(s)");
+        }
+        return buf.toString();
+    }
+}
@@ -1,33 +1,50 @@
 package org.yamcs.maven;
 
-import static java.lang.Math.max;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.singleton;
 import static org.codehaus.plexus.util.FileUtils.cleanDirectory;
-import static org.codehaus.plexus.util.FileUtils.copyStreamToFile;
 import static org.codehaus.plexus.util.FileUtils.getDefaultExcludesAsString;
 import static org.codehaus.plexus.util.FileUtils.getFiles;
 import static org.codehaus.plexus.util.StringUtils.join;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.MalformedInputException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 
 import org.apache.maven.artifact.Artifact;
@@ -50,12 +67,19 @@ import org.apache.maven.project.MavenProjectHelper;
 import org.apache.maven.repository.RepositorySystem;
 import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.Os;
-import org.codehaus.plexus.util.SelectorUtils;
 import org.codehaus.plexus.util.StringUtils;
 import org.codehaus.plexus.util.cli.CommandLineException;
-import org.codehaus.plexus.util.io.RawInputStreamFacade;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
 import org.sonatype.plexus.build.incremental.BuildContext;
 
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.DescriptorProtos.FileOptions;
+import com.google.protobuf.DescriptorProtos.MethodDescriptorProto;
+import com.google.protobuf.DescriptorProtos.ServiceDescriptorProto;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
+
 /**
  * This mojo executes the {@code protoc} compiler for generating main Java
  * sources from protocol buffer definitions. It also searches dependency
@@ -70,6 +94,14 @@ public class ProtocMojo extends AbstractMojo {
     private static final String PROTO_FILE_SUFFIX = ".proto";
     private static final String DEFAULT_INCLUDES = "**/*" + PROTO_FILE_SUFFIX;
 
+    private static final String SOURCE_PREFIX = "source:";
+    private static final String OUTPUT_PREFIX = "output:";
+    private static final String ARTIFACT_PREFIX = "artifact:";
+    private static final String DEPENDENCY_PREFIX = "dependency:";
+    private static final String DESCRIPTOR_SET_PREFIX = "descriptorSet:";
+    private static final String DESCRIPTOR_SET_ARTIFACT_PREFIX = "descriptorSetArtifact:";
+    private static final String SOURCE_HEADER = "// source:";
+
     @Parameter(defaultValue = "${project}", readonly = true)
     protected MavenProject project;
 
@@ -95,8 +127,12 @@ public class ProtocMojo extends AbstractMojo {
     private List<ArtifactRepository> remoteRepositories;
 
     /**
-     * A directory where native launchers for java protoc plugins will be generated.
+     * No longer used. The {@code protoc} executable and plugin launchers are
+     * prepared in {@link #cacheDirectory}, and shared by all modules.
+     *
+     * @deprecated See {@link #cacheDirectory}.
      */
+    @Deprecated
     @Parameter(required = false, defaultValue = "${project.build.directory}/protoc-plugins")
     private File protocPluginDirectory;
 
@@ -104,13 +140,88 @@ public class ProtocMojo extends AbstractMojo {
     private String protocVersion;
 
     /**
-     * Since {@code protoc} cannot access jars, proto files in dependencies are
-     * extracted to this location and deleted
-     * on exit. This directory is always cleaned during execution.
+     * Since {@code protoc} cannot access jars, proto files in dependencies that are
+     * imported by the source definitions are linked or copied to this location.
      */
     @Parameter(required = true, defaultValue = "${project.build.directory}/protoc-dependencies")
     private File temporaryProtoFileDirectory;
 
+    /**
+     * Machine-wide cache directory, shared by all modules and builds. Proto files in
+     * dependencies are extracted here, once for each distinct jar. This directory
+     * also holds the {@code protoc} executable and the launcher of the service
+     * generator plugin.
+     */
+    @Parameter(required = true, property = "yamcs.cacheDirectory", defaultValue = "${user.home}/.m2/yamcs-cache")
+    private File cacheDirectory;
+
+    /**
+     * Number of days after which unused entries are removed from
+     * {@link #cacheDirectory}. Pruning happens at most once a day. Set to
+     * {@code 0} to keep all entries.
+     */
+    @Parameter(required = false, property = "yamcs.cacheRetentionDays", defaultValue = "30")
+    private int cacheRetentionDays;
+
+    /**
+     * If {@code true}, dependencies that have a {@code protobin} descriptor set
+     * (see {@link #attachDescriptorSet}) with the same
+     * {@link #descriptorSetClassifier} are imported through that descriptor set,
+     * rather than by extracting and parsing their {@code .proto} files. Descriptor
+     * sets attached within the current reactor are preferred, otherwise they are
+     * resolved from the repositories, for dependencies that contain proto files.
+     * <p>
+     * Dependencies for which no descriptor set could be resolved are remembered in
+     * {@link #cacheDirectory} for a day (or until a build with
+     * {@code --update-snapshots}), so that they are not looked up remotely on every
+     * build.
+     */
+    @Parameter(required = false, property = "protoc.useDependencyDescriptorSets", defaultValue = "false")
+    private boolean useDependencyDescriptorSets;
+
+    /**
+     * If {@code true}, generated files are stored in {@link #cacheDirectory}, keyed
+     * by a hash of the source and dependency definitions, the tool versions and the
+     * options. When the same inputs are compiled again, for example after switching
+     * branches, the files are restored from the cache without running protoc.
+     * <p>
+     * Entries that are not used within {@link #cacheRetentionDays} are removed.
+     */
+    @Parameter(required = false, property = "protoc.buildCache", defaultValue = "false")
+    private boolean buildCache;
+
+    /**
+     * If {@code true}, generated sources are compiled by this goal, and the
+     * resulting classes are copied to {@link #classesDirectory} instead of adding
+     * the sources to the compile source roots. Compiled classes are cached in
+     * {@link #cacheDirectory}, so that unchanged modules skip compilation of
+     * generated code entirely.
+     * <p>
+     * If the generated sources cannot be compiled on their own, they are added to
+     * the compile source roots as usual.
+     */
+    @Parameter(required = false, property = "protoc.precompile", defaultValue = "false")
+    private boolean precompile;
+
+    /**
+     * The Java release that precompiled classes target. Only used if
+     * {@link #precompile} is set.
+     * <p>
+     * If not specified, the {@code release} or {@code target} of the
+     * {@code maven-compiler-plugin} configuration is used, or else the
+     * {@code maven.compiler.release} or {@code maven.compiler.target} property.
+     * If none of these is set, generated sources are not precompiled.
+     */
+    @Parameter(required = false, property = "protoc.release")
+    private String release;
+
+    /**
+     * The directory where precompiled classes are copied to. Only used if
+     * {@link #precompile} is set.
+     */
+    @Parameter(required = true, defaultValue = "${project.build.outputDirectory}")
+    private File classesDirectory;
+
     /**
      * A list of &lt;include&gt; elements specifying the protobuf definition files
      * (by pattern) that should be included
@@ -187,30 +298,33 @@ public class ProtocMojo extends AbstractMojo {
     protected boolean includeSourceInfoInDescriptorSet;
 
     /**
-     * Sets the granularity in milliseconds of the last modification date for
-     * testing whether source protobuf definitions need recompilation.
-     *
-     * <p>
-     * This parameter is only used when {@link #checkStaleness} parameter is set to
-     * {@code true}.
+     * No longer used. Staleness is determined from content hashes rather than from
+     * modification times.
      *
-     * <p>
-     * If the project is built on NFS it's recommended to set this parameter to
-     * {@code 10000}.
+     * @deprecated See {@link #checkStaleness}.
      */
+    @Deprecated
     @Parameter(required = false, defaultValue = "0")
     private long staleMillis;
 
     /**
      * Normally {@code protoc} is invoked on every execution of the plugin. Setting
-     * this parameter to {@code true} will enable checking timestamps of source
-     * protobuf definitions vs. generated sources.
-     *
-     * @see #staleMillis
+     * this parameter to {@code true} will enable comparing content hashes of
+     * source protobuf definitions, dependency protobuf definitions and tool
+     * versions against those recorded in the {@link #fingerprintIndexFile} by the
+     * previous compilation. Dependency definitions are only extracted and hashed
+     * if the size or modification time of a dependency artifact changed.
      */
     @Parameter(required = false, defaultValue = "true")
     private boolean checkStaleness;
 
+    /**
+     * File in which the content hashes of all inputs of the last successful
+     * compilation are recorded.
+     */
+    @Parameter(required = true, defaultValue = "${project.build.directory}/protoc-fingerprints.txt")
+    private File fingerprintIndexFile;
+
     /**
      * When {@code true}, skip the execution.
      */
@@ -218,12 +332,10 @@ public class ProtocMojo extends AbstractMojo {
     private boolean skip;
 
     /**
-     * When {@code true}, the output directory will be cleared out prior to code
-     * generation. With the latest versions of
-     * protoc (2.5.0 or later) this is generally not required, although some earlier
-     * versions reportedly had issues with
-     * running two code generations in a row without clearing out the output
-     * directory in between.
+     * When {@code true}, files in the output directory that were not produced by
+     * code generation are removed after a full compilation. Files that were
+     * produced are only rewritten if their content changed, so that their timestamps
+     * remain valid for incremental Java compilation.
      */
     @Parameter(required = false, defaultValue = "true")
     private boolean clearOutputDirectory;
@@ -233,7 +345,7 @@ public class ProtocMojo extends AbstractMojo {
      * compiled.
      */
     @Parameter(required = true, defaultValue = "${basedir}/src/main/proto")
-    private File protoSourceRoot;
+    protected File protoSourceRoot;
 
     /**
      * This is the directory into which the (optional) descriptor set file will be
@@ -244,13 +356,71 @@ public class ProtocMojo extends AbstractMojo {
 
     /**
      * If generated descriptor set is to be attached to the build, specifies an
-     * optional classifier.
+     * optional classifier. With {@link #useDependencyDescriptorSets}, this is also
+     * the classifier of the descriptor sets that are looked up for dependencies.
      */
     @Parameter(required = false)
     protected String descriptorSetClassifier;
 
     @Parameter(required = true, property = "javaOutputDirectory", defaultValue = "${project.build.directory}/generated-sources/protobuf/java")
-    private File outputDirectory;
+    protected File outputDirectory;
+
+    /**
+     * Directory into which {@code protoc} generates, before the results are moved
+     * to {@link #outputDirectory}.
+     */
+    @Parameter(required = true, defaultValue = "${project.build.directory}/protoc-staging")
+    private File stagingDirectory;
+
+    /**
+     * When {@code true}, and only source definitions have changed since the
+     * previous compilation, only the changed definitions and the definitions that
+     * import them (directly or transitively) are recompiled. Generated files of
+     * removed definitions are deleted. The descriptor set of the previous
+     * compilation is updated with the recompiled definitions.
+     */
+    @Parameter(required = false, property = "protoc.incremental", defaultValue = "true")
+    private boolean incremental;
+
+    /**
+     * Number of {@code protoc} processes that may run concurrently. When greater
+     * than one, the files to compile are split into shards of similar size, each
+     * generated into its own staging directory. Generated files and descriptor
+     * sets are merged afterwards. Use {@code 0} for the number of available
+     * processors.
+     */
+    @Parameter(required = false, property = "protoc.threads", defaultValue = "1")
+    private int threads;
+
+    /**
+     * When {@code true}, services are generated by running {@code protoc-gen-yamcs}
+     * as a {@code protoc} plugin in a separate JVM. When {@code false}, services
+     * are generated within the Maven JVM from a descriptor set emitted by
+     * {@code protoc}, avoiding the cost of starting another JVM.
+     */
+    @Parameter(required = false, property = "protoc.forkServiceGenerator", defaultValue = "true")
+    private boolean forkServiceGenerator;
+
+    /**
+     * Options of the service generator. Supported options are:
+     * <ul>
+     * <li>{@code metrics}: generated services record call counts and latencies
+     * per method, once enabled at runtime. They are read through a
+     * {@code ServiceMetrics} interface, generated once per Java package.
+     * <li>{@code batch}: generated clients get a batched variant of each unary
+     * call, which pipelines a list of requests with a bounded number of calls in
+     * flight.
+     * <li>{@code json}: generates a {@code <Outer>Json} class per proto file,
+     * with JSON codecs for its messages that follow the proto3 JSON mapping
+     * without reflection. The generated code requires {@code gson} and
+     * {@code protobuf-java-util}.
+     * <li>{@code routes}: generates a {@code <Outer>Routes} class per proto file
+     * with routed methods, which matches HTTP request paths against the
+     * {@code route} options of its methods.
+     * </ul>
+     */
+    @Parameter(required = false, property = "protoc.serviceOptions")
+    private List<String> serviceOptions;
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
@@ -268,90 +438,16 @@ public class ProtocMojo extends AbstractMojo {
                 } else if (!hasDelta(protoFiles)) {
                     getLog().info("Skipping compilation because build context has no changes.");
                     doAttachFiles();
-                } else if (checkStaleness && checkFilesUpToDate(protoFiles, outputFiles)) {
-                    getLog().info("Skipping compilation because target directory newer than sources.");
-                    doAttachFiles();
                 } else {
-                    List<File> derivedProtoPathElements = makeProtoPathFromJars(temporaryProtoFileDirectory,
-                            getDependencyArtifactFiles());
-                    FileUtils.mkdir(outputDirectory.getAbsolutePath());
-
-                    if (clearOutputDirectory) {
-                        try {
-                            cleanDirectory(outputDirectory);
-                        } catch (IOException e) {
-                            throw new MojoInitializationException("Unable to clean output directory", e);
-                        }
-                    }
-
-                    if (writeDescriptorSet) {
-                        File descriptorSetOutputDirectory = getDescriptorSetOutputDirectory();
-                        FileUtils.mkdir(descriptorSetOutputDirectory.getAbsolutePath());
-                        if (clearOutputDirectory) {
-                            try {
-                                cleanDirectory(descriptorSetOutputDirectory);
-                            } catch (IOException e) {
-                                throw new MojoInitializationException(
-                                        "Unable to clean descriptor set output directory", e);
-                            }
-                        }
-                    }
-
-                    var pluginExecutable = createPluginExecutable();
-
-                    Artifact artifact = createProtocArtifact();
-                    File file = resolveBinaryArtifact(artifact);
-                    String protocExecutable = file.getAbsolutePath();
-
-                    Protoc.Builder protocBuilder = new Protoc.Builder(protocExecutable)
-                            .addProtoPathElement(protoSourceRoot)
-                            .addProtoPathElements(derivedProtoPathElements)
-                            .addProtoFiles(protoFiles)
-                            .setPluginExecutable(pluginExecutable);
-
-                    if (writeDescriptorSet) {
-                        File descriptorSetFile = new File(getDescriptorSetOutputDirectory(), descriptorSetFileName);
-                        getLog().info("Writing descriptor set: " + descriptorSetFile.getAbsolutePath());
-                        protocBuilder.withDescriptorSetFile(
-                                descriptorSetFile,
-                                includeDependenciesInDescriptorSet,
-                                includeSourceInfoInDescriptorSet);
-                    }
-                    protocBuilder.setJavaOutputDirectory(outputDirectory);
-
-                    Protoc protoc = protocBuilder.build();
-
-                    if (getLog().isDebugEnabled()) {
-                        getLog().debug("Proto source root:");
-                        getLog().debug(" " + protoSourceRoot);
-
-                        if (derivedProtoPathElements != null && !derivedProtoPathElements.isEmpty()) {
-                            getLog().debug("Derived proto paths:");
-                            for (File path : derivedProtoPathElements) {
-                                getLog().debug(" " + path);
-                            }
-                        }
-                    }
-                    protoc.logExecutionParameters(getLog());
-
-                    getLog().info(format("Compiling %d proto file(s) to %s", protoFiles.size(), outputDirectory));
-
-                    int exitStatus = protoc.execute(getLog());
-                    if (StringUtils.isNotBlank(protoc.getOutput())) {
-                        getLog().info("PROTOC: " + protoc.getOutput());
-                    }
-                    if (exitStatus != 0) {
-                        getLog().error("PROTOC FAILED: " + protoc.getError());
-                        for (File pf : protoFiles) {
-                            buildContext.removeMessages(pf);
-                            buildContext.addMessage(pf, 0, 0, protoc.getError(), BuildContext.SEVERITY_ERROR, null);
-                        }
-                        throw new MojoFailureException(
-                                "protoc did not exit cleanly. Review output for more information.");
-                    } else if (StringUtils.isNotBlank(protoc.getError())) {
-                        getLog().warn("PROTOC: " + protoc.getError());
+                    // Tools are prepared in the background, while dependency protos are resolved
+                    var executor = newExecutor();
+                    try {
+                        generate(protoFiles, outputFiles, prepareTools(executor));
+                        doAttachFiles();
+                    } finally {
+                        // Unfinished preparations may complete, their result is kept by the toolchain
+                        executor.shutdown();
                     }
-                    doAttachFiles();
                 }
             } catch (MojoConfigurationException e) {
                 throw new MojoExecutionException("Configuration error: " + e.getMessage(), e);
@@ -368,217 +464,1314 @@ public class ProtocMojo extends AbstractMojo {
         }
     }
 
-    private File createPluginExecutable() {
-        protocPluginDirectory.mkdirs();
+    /**
+     * Compiles the given sources, unless their outputs are up to date.
+     *
+     * @param protoFiles
+     *                    the source protobuf definitions.
+     * @param outputFiles
+     *                    the files currently in the output directory.
+     * @param tools
+     *                    the tools used for compilation.
+     */
+    void generate(List<File> protoFiles, List<File> outputFiles, PreparedTools tools)
+            throws CommandLineException, InterruptedException, MojoFailureException {
+        FingerprintIndex fingerprints = computeFingerprints(protoFiles);
+        var previousFingerprints = FingerprintIndex.load(fingerprintIndexFile);
+
+        // Unchanged dependency artifacts are not opened
+        if (checkStaleness && checkFilesUpToDate(withPreviousArtifacts(fingerprints, previousFingerprints),
+                previousFingerprints, outputFiles, OUTPUT_PREFIX, DEPENDENCY_PREFIX, DESCRIPTOR_SET_PREFIX)) {
+            getLog().info("Skipping compilation because sources and dependencies are unchanged.");
+            return;
+        }
+
+        var graph = ProtoImportGraph.build(protoSourceRoot, protoFiles);
+        DependencyProtoPath dependencyProtoPath = resolveDependencyProtoPath(graph, fingerprints);
 
-        File targetFile;
-        if (Os.isFamily(Os.FAMILY_WINDOWS)) {
-            targetFile = new File(protocPluginDirectory, "protoc-gen-yamcs.cmd");
+        // Rebuilt dependency artifacts may still contain the same definitions
+        if (checkStaleness && checkFilesUpToDate(fingerprints, previousFingerprints, outputFiles,
+                OUTPUT_PREFIX, ARTIFACT_PREFIX, DESCRIPTOR_SET_ARTIFACT_PREFIX)) {
+            getLog().info("Skipping compilation because sources and dependencies are unchanged.");
+            saveFingerprints(fingerprints, previousFingerprints.getEntries(OUTPUT_PREFIX));
         } else {
-            targetFile = new File(protocPluginDirectory, "protoc-gen-yamcs");
+            compile(protoFiles, graph, dependencyProtoPath, fingerprints, tools);
         }
+    }
 
-        var generatorPath = ServiceGenerator.class.getName().replace('.', '/') + ".java";
-        var javaFile = Path.of(targetFile.getParent(), generatorPath);
+    /**
+     * Creates the executor on which tools are prepared while dependency protos
+     * are resolved.
+     */
+    ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(2);
+    }
 
-        try {
-            Files.createDirectories(javaFile.getParent());
+    private int getShardCount() {
+        return (threads <= 0) ? Runtime.getRuntime().availableProcessors() : threads;
+    }
 
-            var resource = "/" + generatorPath;
-            try (var reader = new BufferedReader(new InputStreamReader(
-                    getClass().getResourceAsStream(resource)))) {
-                var java = reader.lines().collect(Collectors.joining("\n"));
-                Files.writeString(javaFile, java);
-            }
-        } catch (IOException e) {
-            throw new MojoInitializationException("Failed to write protoc plugin source");
-        }
+    /**
+     * Derives the proto path for the dependency definitions that are imported by
+     * the sources, and adds their fingerprints to the given index.
+     */
+    DependencyProtoPath resolveDependencyProtoPath(ProtoImportGraph graph, FingerprintIndex fingerprints) {
+        return makeProtoPathFromJars(getDependencyArtifactFiles(), graph, fingerprints);
+    }
 
-        Artifact protocPluginArtifact = repositorySystem.createArtifact(
-                "com.google.protobuf",
-                "protobuf-java",
-                protocVersion,
-                "jar");
-        protocPluginArtifact.setScope(Artifact.SCOPE_RUNTIME);
+    /**
+     * Starts preparing the {@code protoc} executable and, if needed, the service
+     * generator plugin. Both only depend on the plugin configuration, so they do
+     * not have to wait for the analysis of sources and dependencies.
+     */
+    PreparedTools prepareTools(Executor executor) {
+        var toolchain = ProtocToolchain.get(session, new File(cacheDirectory, "toolchain"), protocVersion);
+        CachePruner.prune(toolchain.getDirectory(), cacheRetentionDays);
+        var protocExecutable = CompletableFuture.supplyAsync(() -> toolchain.getProtocExecutable(
+                () -> installBinaryArtifact(createProtocArtifact(), toolchain.getDirectory())), executor);
+        CompletableFuture<File> pluginExecutable = CompletableFuture.completedFuture(null);
+        if (forkServiceGenerator) {
+            pluginExecutable = CompletableFuture.supplyAsync(() -> toolchain.getPluginExecutable(
+                    () -> createPluginExecutable(toolchain.getDirectory())), executor);
+        }
+        return new PreparedTools(protocExecutable, pluginExecutable);
+    }
 
-        ArtifactResolutionRequest request = new ArtifactResolutionRequest()
-                .setArtifact(project.getArtifact())
-                .setResolveRoot(false)
-                .setArtifactDependencies(Collections.singleton(protocPluginArtifact))
-                .setManagedVersionMap(emptyMap())
-                .setLocalRepository(localRepository)
-                .setRemoteRepositories(remoteRepositories)
-                .setOffline(session.isOffline())
-                .setForceUpdate(session.getRequest().isUpdateSnapshots())
-                .setServers(session.getRequest().getServers())
-                .setMirrors(session.getRequest().getMirrors())
-                .setProxies(session.getRequest().getProxies());
+    /**
+     * Tools that are being prepared concurrently with the rest of the build.
+     */
+    static final class PreparedTools {
 
-        ArtifactResolutionResult result = repositorySystem.resolve(request);
+        final CompletableFuture<File> protocExecutable;
+        final CompletableFuture<File> pluginExecutable;
 
-        try {
-            resolutionErrorHandler.throwErrors(request, result);
-        } catch (ArtifactResolutionException e) {
-            throw new MojoInitializationException("Unable to resolve plugin artifact: " + e.getMessage(), e);
+        PreparedTools(CompletableFuture<File> protocExecutable, CompletableFuture<File> pluginExecutable) {
+            this.protocExecutable = protocExecutable;
+            this.pluginExecutable = pluginExecutable;
         }
 
-        Set<Artifact> artifacts = result.getArtifacts();
-
-        if (artifacts == null || artifacts.isEmpty()) {
-            throw new MojoInitializationException("Unable to resolve plugin artifact");
+        /**
+         * Waits for a tool to be prepared, rethrowing any failure as is.
+         */
+        static File await(CompletableFuture<File> future) throws InterruptedException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new MojoInitializationException("Unable to prepare protoc", e.getCause());
+            }
         }
+    }
 
-        var jarFiles = new ArrayList<File>();
-        for (Artifact artifact : artifacts) {
-            jarFiles.add(artifact.getFile());
+    private void compile(List<File> protoFiles, ProtoImportGraph graph, DependencyProtoPath dependencyProtoPath,
+            FingerprintIndex fingerprints, PreparedTools tools)
+            throws CommandLineException, InterruptedException, MojoFailureException {
+        var derivedProtoPathElements = dependencyProtoPath.protoPathElements;
+        var previousFingerprints = FingerprintIndex.load(fingerprintIndexFile);
+        // Forget about the previous compilation, so that a failure forces a retry
+        fingerprintIndexFile.delete();
+
+        FileUtils.mkdir(outputDirectory.getAbsolutePath());
+
+        GeneratedOutputCache generatedOutputCache = null;
+        String cacheKey = null;
+        if (buildCache) {
+            var outputCacheDirectory = new File(cacheDirectory, "outputs");
+            CachePruner.prune(outputCacheDirectory, cacheRetentionDays);
+            generatedOutputCache = new GeneratedOutputCache(outputCacheDirectory);
+            cacheKey = GeneratedOutputCache.computeKey(fingerprints);
+            File descriptorSetFile = null;
+            if (writeDescriptorSet) {
+                descriptorSetFile = new File(getDescriptorSetOutputDirectory(), descriptorSetFileName);
+            }
+            var restoredOutputs = generatedOutputCache.restore(cacheKey, outputDirectory, descriptorSetFile);
+            if (restoredOutputs != null) {
+                getLog().info(format("Restored %d generated file(s) from the build cache", restoredOutputs.size()));
+                var staleOutputs = new TreeSet<>(previousFingerprints.getEntries(OUTPUT_PREFIX).keySet());
+                removeStaleOutputs(staleOutputs, restoredOutputs, true, descriptorSetFile);
+                saveFingerprints(fingerprints, restoredOutputs);
+                return;
+            }
         }
 
-        if (Os.isFamily(Os.FAMILY_WINDOWS)) {
-            buildWindowsPlugin(javaFile, jarFiles, targetFile);
+        // Generated files that remain valid, mapped to the source they belong to
+        var outputs = new TreeMap<String, String>();
+
+        // Previously generated files that are deleted, unless generated again
+        var staleOutputs = new TreeSet<String>();
+
+        Set<String> recompile;
+        boolean fullCompilation = !incremental || !canCompileIncrementally(fingerprints, previousFingerprints);
+        if (fullCompilation) {
+            recompile = graph.getFiles();
         } else {
-            buildUnixPlugin(javaFile, jarFiles, targetFile);
-            targetFile.setExecutable(true);
-        }
+            var previousSources = previousFingerprints.getEntries(SOURCE_PREFIX);
+            var currentSources = fingerprints.getEntries(SOURCE_PREFIX);
+            var changed = new TreeSet<String>();
+            for (var entry : currentSources.entrySet()) {
+                if (!entry.getValue().equals(previousSources.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+            for (var name : previousSources.keySet()) {
+                if (!currentSources.containsKey(name)) {
+                    changed.add(name); // Removed or renamed
+                }
+            }
+            for (var entry : previousFingerprints.getEntries(OUTPUT_PREFIX).entrySet()) {
+                if (!new File(outputDirectory, entry.getKey()).exists()) {
+                    changed.add(entry.getValue()); // Deleted from the output directory
+                }
+            }
 
-        return targetFile;
-    }
+            recompile = graph.getReverseClosure(changed);
 
-    private void buildUnixPlugin(Path javaFile, List<File> jarFiles, File targetFile) {
-        File javaLocation = JavaProcessBuilder.findJava();
+            var stale = new HashSet<>(changed);
+            stale.addAll(recompile);
+            for (var entry : previousFingerprints.getEntries(OUTPUT_PREFIX).entrySet()) {
+                if (stale.contains(entry.getValue())) {
+                    staleOutputs.add(entry.getKey());
+                } else {
+                    outputs.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
 
-        try (var out = new PrintWriter(new FileWriter(targetFile))) {
-            out.println("#!/bin/sh");
-            out.println();
-            out.print("CP=");
-            out.print(jarFiles.stream()
-                    .map(j -> "\"" + j.getAbsolutePath() + "\"")
-                    .collect(Collectors.joining(":")));
-            out.println();
-            out.println("\"" + javaLocation.getAbsolutePath() + "\" -cp $CP \"" + javaFile + "\"");
+        try {
+            FileUtils.forceMkdir(stagingDirectory);
+            cleanDirectory(stagingDirectory);
         } catch (IOException e) {
-            throw new MojoInitializationException("Could not write plugin script file: " + targetFile, e);
+            throw new MojoInitializationException("Unable to clean staging directory", e);
         }
-    }
 
-    private void buildWindowsPlugin(Path javaFile, List<File> jarFiles, File targetFile) {
-        File javaLocation = JavaProcessBuilder.findJava();
-
-        try (var out = new PrintWriter(new FileWriter(targetFile))) {
-            out.println("@echo off");
-            out.println("setlocal");
-            out.println();
-            out.print("set CP=");
-            out.print(jarFiles.stream()
-                    .map(j -> "\"" + j.getAbsolutePath() + "\"")
-                    .collect(Collectors.joining(";")));
-            out.println();
-            out.println("\"" + javaLocation.getAbsolutePath() + "\" -cp %CP% \"" + javaFile + "\"");
-        } catch (IOException e) {
-            throw new MojoInitializationException("Could not write plugin script file: " + targetFile, e);
+        // The descriptor set is staged as well, and only replaced if it changed
+        File descriptorSetFile = null;
+        File stagedDescriptorSetFile = null;
+        if (writeDescriptorSet) {
+            File descriptorSetOutputDirectory = getDescriptorSetOutputDirectory();
+            FileUtils.mkdir(descriptorSetOutputDirectory.getAbsolutePath());
+            descriptorSetFile = new File(descriptorSetOutputDirectory, descriptorSetFileName);
+            stagedDescriptorSetFile = new File(stagingDirectory, "descriptor-set.protobin");
         }
-    }
 
-    private boolean skipMojo() {
-        if (skip) {
-            getLog().info("Skipping mojo execution");
-            return true;
+        if (getLog().isDebugEnabled()) {
+            getLog().debug("Proto source root:");
+            getLog().debug(" " + protoSourceRoot);
+
+            if (derivedProtoPathElements != null && !derivedProtoPathElements.isEmpty()) {
+                getLog().debug("Derived proto paths:");
+                for (File path : derivedProtoPathElements) {
+                    getLog().debug(" " + path);
+                }
+            }
+            if (!dependencyProtoPath.descriptorSetFiles.isEmpty()) {
+                getLog().debug("Dependency descriptor sets:");
+                for (File descriptorSet : dependencyProtoPath.descriptorSetFiles) {
+                    getLog().debug(" " + descriptorSet);
+                }
+            }
         }
 
-        if ("pom".equals(project.getPackaging())) {
-            getLog().info("Skipping mojo execution for project with packaging type 'pom'");
-            return true;
+        String protocExecutable = PreparedTools.await(tools.protocExecutable).getAbsolutePath();
+
+        // Incremental builds update the previous descriptor set with the recompiled files
+        boolean withDescriptorSet = descriptorSetFile != null && (fullCompilation || descriptorSetFile.isFile());
+        if (withDescriptorSet) {
+            getLog().info("Writing descriptor set: " + descriptorSetFile.getAbsolutePath());
         }
+        var shardDescriptorSetFiles = new ArrayList<File>();
+
+        if (!recompile.isEmpty()) {
+            var recompileFiles = protoFiles.stream()
+                    .filter(f -> recompile.contains(ProtoImportGraph.toName(protoSourceRoot, f)))
+                    .collect(Collectors.toList());
+
+            File pluginExecutable = PreparedTools.await(tools.pluginExecutable);
+
+            var shardFiles = new ArrayList<List<File>>();
+            int shardCount = getShardCount();
+            if (shardCount > 1 && recompileFiles.size() > 1) {
+                var partition = graph.partition(recompile, shardCount,
+                        name -> new File(protoSourceRoot, name).length());
+                for (var names : partition) {
+                    shardFiles.add(names.stream()
+                            .map(name -> new File(protoSourceRoot, name))
+                            .collect(Collectors.toList()));
+                }
+            } else {
+                shardFiles.add(recompileFiles);
+            }
 
-        return false;
-    }
+            var shards = new ArrayList<Shard>();
+            for (int i = 0; i < shardFiles.size(); i++) {
+                var shard = new Shard(shardFiles.get(i));
+                shard.directory = new File(stagingDirectory, "shard-" + i);
+                FileUtils.mkdir(shard.directory.getAbsolutePath());
+                if (withDescriptorSet) {
+                    if (shardFiles.size() > 1 || !fullCompilation) {
+                        shard.descriptorSetFile = new File(stagingDirectory, "shard-" + i + ".protobin");
+                    } else {
+                        shard.descriptorSetFile = stagedDescriptorSetFile;
+                    }
+                    shardDescriptorSetFiles.add(shard.descriptorSetFile);
+                }
 
-    private static List<File> findGeneratedFilesInDirectory(File directory) {
-        if (directory == null || !directory.isDirectory()) {
-            return emptyList();
+                Protoc.Builder protocBuilder = new Protoc.Builder(protocExecutable)
+                        .addProtoPathElement(protoSourceRoot)
+                        .addProtoPathElements(derivedProtoPathElements)
+                        .addDescriptorSetInFiles(dependencyProtoPath.descriptorSetFiles)
+                        .addProtoFiles(shard.protoFiles)
+                        .setPluginExecutable(pluginExecutable)
+                        .setPluginParameter(getServiceGeneratorParameter())
+                        .setJavaOutputDirectory(shard.directory);
+
+                if (!forkServiceGenerator) {
+                    // The service generator requires imports and comments, the
+                    // requested descriptor set is derived from it afterwards.
+                    shard.generatorDescriptorSetFile = new File(stagingDirectory, "shard-" + i + ".services.protobin");
+                    protocBuilder.withDescriptorSetFile(shard.generatorDescriptorSetFile, true, true);
+                } else if (withDescriptorSet) {
+                    protocBuilder.withDescriptorSetFile(
+                            shard.descriptorSetFile,
+                            includeDependenciesInDescriptorSet,
+                            includeSourceInfoInDescriptorSet);
+                }
+                shard.protoc = protocBuilder.build();
+                shards.add(shard);
+            }
+
+            if (fullCompilation) {
+                getLog().info(format("Compiling %d proto file(s) to %s", recompileFiles.size(), outputDirectory));
+            } else {
+                getLog().info(format("Compiling %d of %d proto file(s) to %s",
+                        recompileFiles.size(), protoFiles.size(), outputDirectory));
+            }
+            if (shards.size() > 1) {
+                getLog().info(format("Using %d concurrent protoc processes", shards.size()));
+            }
+            runShards(shards);
+
+            if (withDescriptorSet && fullCompilation && shards.size() > 1) {
+                mergeDescriptorSets(shardDescriptorSetFiles, stagedDescriptorSetFile);
+            }
+            int updatedCount = 0;
+            for (var shard : shards) {
+                updatedCount += moveStagedFiles(shard.directory, outputDirectory, outputs);
+            }
+            getLog().info(format("%d generated file(s) changed", updatedCount));
         }
 
-        List<File> generatedFilesInDirectory;
-        try {
-            generatedFilesInDirectory = getFiles(directory, "**/*", getDefaultExcludesAsString());
-        } catch (IOException e) {
-            throw new MojoInitializationException("Unable to scan output directory", e);
+        if (withDescriptorSet && !fullCompilation) {
+            withDescriptorSet = updateDescriptorSet(descriptorSetFile, shardDescriptorSetFiles, protoFiles,
+                    stagedDescriptorSetFile);
         }
-        return generatedFilesInDirectory;
+        if (descriptorSetFile != null && !withDescriptorSet) {
+            // Without a usable previous descriptor set, all files are compiled again
+            getLog().info("Writing descriptor set: " + descriptorSetFile.getAbsolutePath());
+            Protoc protoc = new Protoc.Builder(protocExecutable)
+                    .addProtoPathElement(protoSourceRoot)
+                    .addProtoPathElements(derivedProtoPathElements)
+                    .addDescriptorSetInFiles(dependencyProtoPath.descriptorSetFiles)
+                    .addProtoFiles(protoFiles)
+                    .withDescriptorSetFile(
+                            stagedDescriptorSetFile,
+                            includeDependenciesInDescriptorSet,
+                            includeSourceInfoInDescriptorSet)
+                    .build();
+            runProtoc(protoc, protoFiles);
+        }
+        if (descriptorSetFile != null) {
+            moveStagedFile(stagedDescriptorSetFile.toPath(), descriptorSetFile.toPath());
+        }
+
+        removeStaleOutputs(staleOutputs, outputs, fullCompilation, descriptorSetFile);
+        if (generatedOutputCache != null) {
+            generatedOutputCache.store(cacheKey, outputDirectory, outputs, descriptorSetFile);
+        }
+        saveFingerprints(fingerprints, outputs);
     }
 
     /**
-     * Returns timestamp for the most recently modified file in the given set.
+     * Removes files that are no longer generated.
      *
-     * @param files
-     *              a collection of file descriptors.
-     * @return timestamp of the most recently modified file.
+     * @param staleOutputs
+     *                          previously generated files.
+     * @param outputs
+     *                          currently generated files.
+     * @param fullCompilation
+     *                          whether all outputs were generated, in which case
+     *                          other files are removed if
+     *                          {@link #clearOutputDirectory} is set.
+     * @param descriptorSetFile
+     *                          the generated descriptor set, or {@code null} if
+     *                          none was requested.
      */
-    private static long lastModified(Iterable<File> files) {
-        long result = 0L;
-        for (File file : files) {
-            result = max(result, file.lastModified());
+    private void removeStaleOutputs(Set<String> staleOutputs, Map<String, String> outputs, boolean fullCompilation,
+            File descriptorSetFile) {
+        staleOutputs.removeAll(outputs.keySet());
+        for (var staleOutput : staleOutputs) {
+            new File(outputDirectory, staleOutput).delete();
+        }
+        if (fullCompilation && clearOutputDirectory) {
+            deleteOtherFiles(outputDirectory, outputs.keySet());
+            if (descriptorSetFile != null) {
+                deleteOtherFiles(descriptorSetFile.getParentFile(), singleton(descriptorSetFile.getName()));
+            }
         }
-        return result;
     }
 
-    /**
-     * Checks that the source files don't have modification time that is later than
-     * the target files.
-     *
-     * @param sourceFiles
-     *                    a collection of source files.
-     * @param targetFiles
-     *                    a collection of target files.
-     * @return {@code true}, if source files are not later than the target files;
-     *         {@code false}, otherwise.
-     */
-    private boolean checkFilesUpToDate(Iterable<File> sourceFiles, Iterable<File> targetFiles) {
-        return lastModified(sourceFiles) + staleMillis < lastModified(targetFiles);
+    private void saveFingerprints(FingerprintIndex fingerprints, Map<String, String> outputs) {
+        for (var entry : outputs.entrySet()) {
+            fingerprints.put(OUTPUT_PREFIX + entry.getKey(), entry.getValue());
+        }
+        fingerprints.save(fingerprintIndexFile);
     }
 
     /**
-     * Checks if the injected build context has changes in any of the specified
-     * files.
-     *
-     * @param files
-     *              files to be checked for changes.
-     * @return {@code true}, if at least one file has changes; {@code false}, if no
-     *         files have changes.
+     * Checks whether the previous compilation can be updated, rather than redone.
+     * This is only the case when nothing but the source definitions have changed.
      */
-    private boolean hasDelta(Iterable<File> files) {
-        for (File file : files) {
-            if (buildContext.hasDelta(file)) {
-                return true;
-            }
-        }
-        return false;
+    private boolean canCompileIncrementally(FingerprintIndex fingerprints, FingerprintIndex previousFingerprints) {
+        return !previousFingerprints.isEmpty()
+                && outputDirectory.isDirectory()
+                && fingerprints.equalsExcluding(previousFingerprints, SOURCE_PREFIX, OUTPUT_PREFIX, ARTIFACT_PREFIX,
+                        DESCRIPTOR_SET_ARTIFACT_PREFIX);
     }
 
     /**
-     * Returns output directory for descriptor set file. Depends on build phase so
-     * must be defined in concrete
-     * implementation.
-     *
-     * @return output directory for generated descriptor set.
+     * Compiles multiple shards concurrently, and waits for all of them to
+     * complete.
      */
-    protected File getDescriptorSetOutputDirectory() {
-        return descriptorSetOutputDirectory;
-    }
+    private void runShards(List<Shard> shards)
+            throws CommandLineException, InterruptedException, MojoFailureException {
+        if (shards.size() == 1) {
+            runShard(shards.get(0));
+            return;
+        }
 
-    protected void doAttachFiles() {
-        if (attachProtoSources) {
-            doAttachProtoSources();
+        var executor = Executors.newFixedThreadPool(shards.size());
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (var shard : shards) {
+                futures.add(executor.submit(() -> {
+                    runShard(shard);
+                    return null;
+                }));
+            }
+
+            // Wait for all, then report the first failure
+            Throwable failure = null;
+            for (var future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+            if (failure instanceof MojoFailureException) {
+                throw (MojoFailureException) failure;
+            } else if (failure instanceof CommandLineException) {
+                throw (CommandLineException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure != null) {
+                throw new MojoInitializationException("Failed to run protoc", failure);
+            }
+        } finally {
+            executor.shutdownNow();
         }
-        doAttachGeneratedFiles();
     }
 
-    protected void doAttachProtoSources() {
+    private void runShard(Shard shard)
+            throws CommandLineException, InterruptedException, MojoFailureException {
+        var names = new LinkedHashSet<String>();
+        for (var protoFile : shard.protoFiles) {
+            names.add(ProtoImportGraph.toName(protoSourceRoot, protoFile));
+        }
+
+        runProtoc(shard.protoc, shard.protoFiles);
+
+        FileDescriptorSet descriptorSet = null;
+        if (shard.generatorDescriptorSetFile != null) {
+            try (var in = Files.newInputStream(shard.generatorDescriptorSetFile.toPath())) {
+                descriptorSet = FileDescriptorSet.parseFrom(in);
+            } catch (IOException e) {
+                throw new MojoInitializationException(
+                        "Unable to read descriptor set " + shard.generatorDescriptorSetFile, e);
+            }
+        }
+
+        if (descriptorSet != null) {
+            if (!forkServiceGenerator) {
+                generateServices(descriptorSet, names, shard.directory, shard.protoFiles);
+            }
+            if (shard.descriptorSetFile != null) {
+                writeDescriptorSet(descriptorSet, names, shard.descriptorSetFile);
+            }
+        }
+    }
+
+    /**
+     * Runs {@link ServiceGenerator} within this JVM, rather than as a
+     * {@code protoc} plugin.
+     *
+     * @param descriptorSet
+     *                      a descriptor set that includes imports and source info.
+     * @param names
+     *                      the names of the proto files to generate services for.
+     * @param directory
+     *                      the directory into which to generate.
+     * @param protoFiles
+     *                      the proto files, used for error reporting.
+     */
+    private void generateServices(FileDescriptorSet descriptorSet, Set<String> names, File directory,
+            List<File> protoFiles) throws MojoFailureException {
+        var request = CodeGeneratorRequest.newBuilder()
+                .addAllFileToGenerate(names)
+                .addAllProtoFile(descriptorSet.getFileList())
+                .setParameter(getServiceGeneratorParameter())
+                .build();
+
+        // Shards generate concurrently, so that each gets its share of the processors
+        var parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / getShardCount());
+        var response = ServiceGenerator.generate(request, parallelism);
+        if (response.hasError()) {
+            getLog().error("SERVICE GENERATOR FAILED: " + response.getError());
+            for (File pf : protoFiles) {
+                buildContext.removeMessages(pf);
+                buildContext.addMessage(pf, 0, 0, response.getError(), BuildContext.SEVERITY_ERROR, null);
+            }
+            throw new MojoFailureException("Service generation failed. Review output for more information.");
+        }
+
+        for (var file : response.getFileList()) {
+            var targetFile = new File(directory, file.getName());
+            try {
+                Files.createDirectories(targetFile.getParentFile().toPath());
+                Files.writeString(targetFile.toPath(), file.getContent(), UTF_8);
+            } catch (IOException e) {
+                throw new MojoInitializationException("Unable to write " + targetFile, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the parameter of {@link ServiceGenerator}, as passed by
+     * {@code protoc} to a plugin.
+     */
+    private String getServiceGeneratorParameter() {
+        if (serviceOptions == null) {
+            return "";
+        }
+        return serviceOptions.stream()
+                .map(String::trim)
+                .filter(option -> !option.isEmpty())
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * Writes a descriptor set, honouring the descriptor set options of this mojo.
+     *
+     * @param descriptorSet
+     *                      a descriptor set that includes imports and source info.
+     * @param names
+     *                      the names of the compiled proto files.
+     * @param targetFile
+     *                      the file to write.
+     */
+    private void writeDescriptorSet(FileDescriptorSet descriptorSet, Set<String> names, File targetFile) {
+        var filteredSet = FileDescriptorSet.newBuilder();
+        if (includeDependenciesInDescriptorSet) {
+            filteredSet.addAllFile(descriptorSet.getFileList());
+        } else {
+            // Same order as given to protoc
+            var filesByName = new HashMap<String, FileDescriptorProto>();
+            for (var file : descriptorSet.getFileList()) {
+                filesByName.put(file.getName(), file);
+            }
+            for (var name : names) {
+                filteredSet.addFile(filesByName.get(name));
+            }
+        }
+        if (!includeSourceInfoInDescriptorSet) {
+            for (var file : filteredSet.getFileBuilderList()) {
+                file.clearSourceCodeInfo();
+            }
+        }
+        writeDescriptorSet(filteredSet.build(), targetFile);
+    }
+
+    private void runProtoc(Protoc protoc, List<File> protoFiles)
+            throws CommandLineException, InterruptedException, MojoFailureException {
+        protoc.logExecutionParameters(getLog());
+
+        // Messages are reported while protoc runs, only on the files they refer to
+        synchronized (buildContext) {
+            for (File pf : protoFiles) {
+                buildContext.removeMessages(pf);
+            }
+        }
+        var diagnostics = new ProtocDiagnostics(protoSourceRoot, buildContext, getLog());
+        int exitStatus = protoc.execute(getLog(), diagnostics);
+        if (StringUtils.isNotBlank(protoc.getOutput())) {
+            getLog().info("PROTOC: " + protoc.getOutput());
+        }
+        if (exitStatus != 0) {
+            if (diagnostics.getErrorCount() == 0) {
+                // Nothing to attribute to a specific file, for example a plugin failure
+                var message = diagnostics.getUnmatchedOutput();
+                synchronized (buildContext) {
+                    for (File pf : protoFiles) {
+                        buildContext.addMessage(pf, 0, 0, message, BuildContext.SEVERITY_ERROR, null);
+                    }
+                }
+            }
+            throw new MojoFailureException(
+                    "protoc did not exit cleanly. Review output for more information.");
+        }
+    }
+
+    /**
+     * Combines descriptor sets into a single descriptor set. Files that occur in
+     * multiple descriptor sets are included only once, and files are ordered such
+     * that dependencies come first.
+     */
+    private static void mergeDescriptorSets(List<File> descriptorSetFiles, File targetFile) {
+        var filesByName = new LinkedHashMap<String, FileDescriptorProto>();
+        for (var descriptorSetFile : descriptorSetFiles) {
+            for (var file : readDescriptorSet(descriptorSetFile).getFileList()) {
+                filesByName.putIfAbsent(file.getName(), file);
+            }
+        }
+
+        var merged = FileDescriptorSet.newBuilder();
+        var added = new HashSet<String>();
+        for (var name : filesByName.keySet()) {
+            addWithDependencies(name, filesByName, added, merged);
+        }
+        writeDescriptorSet(merged.build(), targetFile);
+    }
+
+    /**
+     * Replaces the recompiled files in the descriptor set of the previous
+     * compilation, and drops files that are no longer compiled. Files are ordered
+     * the way {@code protoc} orders them when compiling all sources.
+     *
+     * @param previousFile
+     *                           the descriptor set of the previous compilation.
+     * @param descriptorSetFiles
+     *                           the descriptor sets of the recompiled files.
+     * @param protoFiles
+     *                           all source definitions, in the order given to
+     *                           {@code protoc}.
+     * @param targetFile
+     *                           the file to write.
+     * @return {@code false} if the previous descriptor set lacks some of the
+     *         files, in which case nothing is written.
+     */
+    private boolean updateDescriptorSet(File previousFile, List<File> descriptorSetFiles, List<File> protoFiles,
+            File targetFile) {
+        var filesByName = new HashMap<String, FileDescriptorProto>();
+        for (var file : readDescriptorSet(previousFile).getFileList()) {
+            filesByName.put(file.getName(), file);
+        }
+        for (var descriptorSetFile : descriptorSetFiles) {
+            for (var file : readDescriptorSet(descriptorSetFile).getFileList()) {
+                filesByName.put(file.getName(), file);
+            }
+        }
+
+        var updated = FileDescriptorSet.newBuilder();
+        var added = new HashSet<String>();
+        for (var protoFile : protoFiles) {
+            var name = ProtoImportGraph.toName(protoSourceRoot, protoFile);
+            if (!filesByName.containsKey(name)) {
+                return false;
+            } else if (includeDependenciesInDescriptorSet) {
+                addWithDependencies(name, filesByName, added, updated);
+            } else if (added.add(name)) {
+                updated.addFile(filesByName.get(name));
+            }
+        }
+        if (includeDependenciesInDescriptorSet) {
+            for (var file : updated.getFileList()) {
+                if (!added.containsAll(file.getDependencyList())) {
+                    return false;
+                }
+            }
+        }
+        writeDescriptorSet(updated.build(), targetFile);
+        return true;
+    }
+
+    private static FileDescriptorSet readDescriptorSet(File file) {
+        try (var in = Files.newInputStream(file.toPath())) {
+            return FileDescriptorSet.parseFrom(in);
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to read descriptor set " + file, e);
+        }
+    }
+
+    private static void writeDescriptorSet(FileDescriptorSet descriptorSet, File targetFile) {
+        try (var out = Files.newOutputStream(targetFile.toPath())) {
+            descriptorSet.writeTo(out);
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to write descriptor set " + targetFile, e);
+        }
+    }
+
+    private static void addWithDependencies(String name, Map<String, FileDescriptorProto> filesByName,
+            Set<String> added, FileDescriptorSet.Builder target) {
+        var file = filesByName.get(name);
+        if (file != null && added.add(name)) {
+            for (var dependency : file.getDependencyList()) {
+                addWithDependencies(dependency, filesByName, added, target);
+            }
+            target.addFile(file);
+        }
+    }
+
+    /**
+     * Moves generated files from the staging directory to the output directory,
+     * recording for each file the proto source it was generated from. Files whose
+     * content is unchanged are left untouched, so that their timestamp is
+     * preserved for incremental compilers.
+     *
+     * @param stagingDirectory
+     *                         the directory into which files were generated.
+     * @param outputDirectory
+     *                         the final location of the generated files.
+     * @param outputs
+     *                         map where the relative path of each moved file is
+     *                         stored, together with its proto source.
+     * @return the number of files that were created or changed.
+     */
+    private static int moveStagedFiles(File stagingDirectory, File outputDirectory, Map<String, String> outputs) {
+        var stagingPath = stagingDirectory.toPath();
+        var outputPath = outputDirectory.toPath();
+        int updatedCount = 0;
+        try (var stream = Files.walk(stagingPath)) {
+            for (var stagedFile : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                var relativePath = stagingPath.relativize(stagedFile);
+                var targetFile = outputPath.resolve(relativePath);
+                outputs.put(relativePath.toString().replace('\\', '/'), readProtoSource(stagedFile));
+                if (moveStagedFile(stagedFile, targetFile)) {
+                    updatedCount++;
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to move generated files to " + outputDirectory, e);
+        }
+        return updatedCount;
+    }
+
+    /**
+     * Replaces the target file with the staged file, unless both have the same
+     * content.
+     *
+     * @return {@code true} if the target file was created or changed.
+     */
+    private static boolean moveStagedFile(Path stagedFile, Path targetFile) {
+        try {
+            if (Files.isRegularFile(targetFile) && Files.size(targetFile) == Files.size(stagedFile)
+                    && Arrays.equals(Files.readAllBytes(targetFile), Files.readAllBytes(stagedFile))) {
+                Files.delete(stagedFile);
+                return false;
+            }
+            Files.createDirectories(targetFile.getParent());
+            Files.move(stagedFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to move " + stagedFile + " to " + targetFile, e);
+        }
+    }
+
+    /**
+     * Deletes all files of a directory, except the given ones. Directories that
+     * become empty are deleted as well.
+     *
+     * @param directory
+     *                  the directory to clean.
+     * @param keep
+     *                  relative paths of the files to keep, using forward
+     *                  slashes.
+     */
+    private static void deleteOtherFiles(File directory, Set<String> keep) {
+        var directoryPath = directory.toPath();
+        List<Path> paths;
+        try (var stream = Files.walk(directoryPath)) {
+            paths = stream.collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to clean " + directory, e);
+        }
+
+        // Children before parents
+        Collections.reverse(paths);
+        for (var path : paths) {
+            if (path.equals(directoryPath)) {
+                continue;
+            }
+            var file = path.toFile();
+            if (file.isDirectory()) {
+                var children = file.list();
+                if (children != null && children.length == 0) {
+                    file.delete();
+                }
+            } else if (!keep.contains(directoryPath.relativize(path).toString().replace('\\', '/'))) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the proto file that a generated Java file was generated from. Both
+     * {@code protoc} and {@link ServiceGenerator} record this in a header comment.
+     *
+     * @return the proto file name, or an empty string if unknown.
+     */
+    private static String readProtoSource(Path generatedFile) throws IOException {
+        try (var reader = Files.newBufferedReader(generatedFile, UTF_8)) {
+            for (int i = 0; i < 5; i++) {
+                var line = reader.readLine();
+                if (line == null) {
+                    break;
+                } else if (line.startsWith(SOURCE_HEADER)) {
+                    return line.substring(SOURCE_HEADER.length()).trim();
+                }
+            }
+        } catch (MalformedInputException e) {
+            // Not a text file
+        }
+        return "";
+    }
+
+    /**
+     * Prepares a launcher for {@link ServiceGenerator}. Files are named after their
+     * content, so that launchers for different configurations can coexist in the
+     * same directory.
+     */
+    private File createPluginExecutable(File directory) {
+        var generatorVersion = getGeneratorVersion().substring(0, 12);
+        var generatorJar = new File(directory, "protoc-gen-yamcs-" + generatorVersion + ".jar");
+        if (generatorJar.exists()) {
+            CachePruner.touch(generatorJar);
+        } else {
+            writeGeneratorJar(generatorJar);
+        }
+
+        Artifact protocPluginArtifact = repositorySystem.createArtifact(
+                "com.google.protobuf",
+                "protobuf-java",
+                protocVersion,
+                "jar");
+        protocPluginArtifact.setScope(Artifact.SCOPE_RUNTIME);
+
+        ArtifactResolutionRequest request = new ArtifactResolutionRequest()
+                .setArtifact(project.getArtifact())
+                .setResolveRoot(false)
+                .setArtifactDependencies(Collections.singleton(protocPluginArtifact))
+                .setManagedVersionMap(emptyMap())
+                .setLocalRepository(localRepository)
+                .setRemoteRepositories(remoteRepositories)
+                .setOffline(session.isOffline())
+                .setForceUpdate(session.getRequest().isUpdateSnapshots())
+                .setServers(session.getRequest().getServers())
+                .setMirrors(session.getRequest().getMirrors())
+                .setProxies(session.getRequest().getProxies());
+
+        ArtifactResolutionResult result = repositorySystem.resolve(request);
+
+        try {
+            resolutionErrorHandler.throwErrors(request, result);
+        } catch (ArtifactResolutionException e) {
+            throw new MojoInitializationException("Unable to resolve plugin artifact: " + e.getMessage(), e);
+        }
+
+        Set<Artifact> artifacts = result.getArtifacts();
+
+        if (artifacts == null || artifacts.isEmpty()) {
+            throw new MojoInitializationException("Unable to resolve plugin artifact");
+        }
+
+        var jarFiles = new ArrayList<File>();
+        jarFiles.add(generatorJar);
+        for (Artifact artifact : artifacts) {
+            jarFiles.add(artifact.getFile());
+        }
+
+        // Favour startup time, the plugin is short-lived
+        var jvmArgs = new ArrayList<String>();
+        jvmArgs.add("-XX:TieredStopAtLevel=1");
+
+        var archiveName = format("protoc-gen-yamcs-%s-protobuf-%s-java-%s.jsa",
+                generatorVersion, protocVersion, Runtime.version().toString().replaceAll("[^\\w.-]", "_"));
+        var sharedArchive = createSharedArchive(new File(directory, archiveName), jarFiles);
+        if (sharedArchive != null) {
+            jvmArgs.add("\"-XX:SharedArchiveFile=" + sharedArchive.getAbsolutePath() + "\"");
+            jvmArgs.add("-Xshare:auto");
+            jvmArgs.add("-Xlog:cds=off");
+            jvmArgs.add("-Xlog:cds+dynamic=off");
+        }
+
+        String script;
+        String extension;
+        if (Os.isFamily(Os.FAMILY_WINDOWS)) {
+            script = buildWindowsPlugin(jvmArgs, jarFiles);
+            extension = ".cmd";
+        } else {
+            script = buildUnixPlugin(jvmArgs, jarFiles);
+            extension = "";
+        }
+
+        var scriptBytes = script.getBytes(UTF_8);
+        var scriptVersion = FingerprintIndex.sha256(scriptBytes).substring(0, 12);
+        var targetFile = new File(directory, "protoc-gen-yamcs-" + scriptVersion + extension);
+        if (targetFile.exists()) {
+            CachePruner.touch(targetFile);
+        } else {
+            try {
+                ProtocToolchain.writeAtomically(targetFile, scriptBytes, true);
+            } catch (IOException e) {
+                throw new MojoInitializationException("Could not write plugin script file: " + targetFile, e);
+            }
+        }
+        return targetFile;
+    }
+
+    /**
+     * Packages the compiled {@link ServiceGenerator} classes into an executable
+     * jar, so that the plugin does not need to be compiled on each invocation.
+     */
+    private static void writeGeneratorJar(File targetFile) {
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, ServiceGenerator.class.getName());
+
+        try {
+            Files.createDirectories(targetFile.getParentFile().toPath());
+            var tmpFile = Files.createTempFile(targetFile.getParentFile().toPath(), targetFile.getName(), ".tmp")
+                    .toFile();
+            try (var out = new JarOutputStream(Files.newOutputStream(tmpFile.toPath()), manifest)) {
+                for (var className : getGeneratorClassNames()) {
+                    var resource = className.replace('.', '/') + ".class";
+                    try (var in = ServiceGenerator.class.getResourceAsStream("/" + resource)) {
+                        var entry = new JarEntry(resource);
+                        entry.setTime(0);
+                        out.putNextEntry(entry);
+                        in.transferTo(out);
+                        out.closeEntry();
+                    }
+                }
+            }
+            Files.move(tmpFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new MojoInitializationException("Failed to write protoc plugin jar", e);
+        }
+    }
+
+    /**
+     * Creates an AppCDS archive for the plugin, by running it once on a small
+     * sample request. This considerably reduces the startup time of subsequent
+     * runs.
+     * <p>
+     * Dynamic archives require Java 13 or later. On earlier versions, or if the
+     * archive could not be created, the plugin runs without archive.
+     *
+     * @return the archive file, or {@code null} if no archive is available.
+     */
+    private File createSharedArchive(File archiveFile, List<File> classpath) {
+        if (archiveFile.exists()) {
+            CachePruner.touch(archiveFile);
+            return archiveFile;
+        } else if (Runtime.version().feature() < 13) {
+            return null;
+        }
+
+        // Unique names, the directory may be shared with concurrent builds
+        var pid = ProcessHandle.current().pid();
+        var tmpArchiveFile = new File(archiveFile.getParentFile(), archiveFile.getName() + "." + pid + ".tmp");
+        var requestFile = new File(archiveFile.getParentFile(), "protoc-gen-yamcs-training." + pid + ".bin");
+        try {
+            Files.write(requestFile.toPath(), createTrainingRequest().toByteArray());
+
+            var command = new ArrayList<String>();
+            command.add(JavaProcessBuilder.findJava().getAbsolutePath());
+            command.add("-XX:ArchiveClassesAtExit=" + tmpArchiveFile.getAbsolutePath());
+            command.add("-cp");
+            command.add(classpath.stream()
+                    .map(File::getAbsolutePath)
+                    .collect(Collectors.joining(File.pathSeparator)));
+            command.add(ServiceGenerator.class.getName());
+
+            getLog().debug("Creating shared archive: " + command);
+            var process = new ProcessBuilder(command)
+                    .redirectInput(requestFile)
+                    .redirectOutput(Redirect.DISCARD)
+                    .redirectError(Redirect.DISCARD)
+                    .start();
+            if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                getLog().debug("Timeout while creating shared archive");
+                return null;
+            } else if (process.exitValue() != 0 || !tmpArchiveFile.exists()) {
+                getLog().debug("Unable to create shared archive (exit status " + process.exitValue() + ")");
+                return null;
+            }
+
+            Files.move(tmpArchiveFile.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return archiveFile;
+        } catch (IOException e) {
+            getLog().debug("Unable to create shared archive", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            requestFile.delete();
+            tmpArchiveFile.delete();
+        }
+    }
+
+    /**
+     * Returns a plugin request that exercises the main code paths of
+     * {@link ServiceGenerator}.
+     */
+    private static CodeGeneratorRequest createTrainingRequest() {
+        var file = FileDescriptorProto.newBuilder()
+                .setName("training.proto")
+                .setPackage("training")
+                .setOptions(FileOptions.newBuilder()
+                        .setJavaPackage("training")
+                        .setJavaMultipleFiles(true))
+                .addMessageType(DescriptorProto.newBuilder().setName("Request"))
+                .addMessageType(DescriptorProto.newBuilder().setName("Response"))
+                .addService(ServiceDescriptorProto.newBuilder()
+                        .setName("TrainingApi")
+                        .addMethod(MethodDescriptorProto.newBuilder()
+                                .setName("Call")
+                                .setInputType(".training.Request")
+                                .setOutputType(".training.Response"))
+                        .addMethod(MethodDescriptorProto.newBuilder()
+                                .setName("Stream")
+                                .setInputType(".training.Request")
+                                .setOutputType(".training.Response")
+                                .setClientStreaming(true)))
+                .build();
+        return CodeGeneratorRequest.newBuilder()
+                .addFileToGenerate(file.getName())
+                .addProtoFile(file)
+                .build();
+    }
+
+    private static String buildUnixPlugin(List<String> jvmArgs, List<File> jarFiles) {
+        File javaLocation = JavaProcessBuilder.findJava();
+
+        var buf = new StringWriter();
+        try (var out = new PrintWriter(buf)) {
+            out.println("#!/bin/sh");
+            out.println();
+            out.print("CP=");
+            out.print(jarFiles.stream()
+                    .map(j -> "\"" + j.getAbsolutePath() + "\"")
+                    .collect(Collectors.joining(":")));
+            out.println();
+            out.println("\"" + javaLocation.getAbsolutePath() + "\" " + String.join(" ", jvmArgs)
+                    + " -cp $CP " + ServiceGenerator.class.getName());
+        }
+        return buf.toString();
+    }
+
+    private static String buildWindowsPlugin(List<String> jvmArgs, List<File> jarFiles) {
+        File javaLocation = JavaProcessBuilder.findJava();
+
+        var buf = new StringWriter();
+        try (var out = new PrintWriter(buf)) {
+            out.println("@echo off");
+            out.println("setlocal");
+            out.println();
+            out.print("set CP=");
+            out.print(jarFiles.stream()
+                    .map(j -> "\"" + j.getAbsolutePath() + "\"")
+                    .collect(Collectors.joining(";")));
+            out.println();
+            out.println("\"" + javaLocation.getAbsolutePath() + "\" " + String.join(" ", jvmArgs)
+                    + " -cp %CP% " + ServiceGenerator.class.getName());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Import roots and descriptor sets through which protoc resolves the imports of
+     * the source definitions.
+     */
+    static final class DependencyProtoPath {
+
+        final List<File> protoPathElements = new ArrayList<>();
+
+        /**
+         * Descriptor sets, for use with {@code --descriptor_set_in}.
+         */
+        final List<File> descriptorSetFiles = new ArrayList<>();
+    }
+
+    /**
+     * The file descriptors of a dependency descriptor set, by file name.
+     */
+    private static final class DescriptorSetProvider {
+
+        final File file;
+        final Map<String, FileDescriptorProto> files = new HashMap<>();
+
+        DescriptorSetProvider(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A subset of the proto files, compiled by its own {@code protoc} process.
+     */
+    private static final class Shard {
+
+        final List<File> protoFiles;
+        Protoc protoc;
+
+        /**
+         * Directory into which this shard generates
+         */
+        File directory;
+
+        /**
+         * Requested descriptor set, or {@code null}
+         */
+        File descriptorSetFile;
+
+        /**
+         * Descriptor set for in-process service generation, or {@code null}
+         */
+        File generatorDescriptorSetFile;
+
+        Shard(List<File> protoFiles) {
+            this.protoFiles = protoFiles;
+        }
+    }
+
+    boolean skipMojo() {
+        if (skip) {
+            getLog().info("Skipping mojo execution");
+            return true;
+        }
+
+        if ("pom".equals(project.getPackaging())) {
+            getLog().info("Skipping mojo execution for project with packaging type 'pom'");
+            return true;
+        }
+
+        return false;
+    }
+
+    static List<File> findGeneratedFilesInDirectory(File directory) {
+        if (directory == null || !directory.isDirectory()) {
+            return emptyList();
+        }
+
+        List<File> generatedFilesInDirectory;
+        try {
+            generatedFilesInDirectory = getFiles(directory, "**/*", getDefaultExcludesAsString());
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to scan output directory", e);
+        }
+        return generatedFilesInDirectory;
+    }
+
+    /**
+     * Computes content hashes for the source definitions, the tool versions and the
+     * options that affect the generated output. Dependency artifacts are recorded
+     * by their size and modification time. Hashes of dependency definitions are
+     * added while deriving the proto path.
+     *
+     * @param protoFiles
+     *                   the source protobuf definitions.
+     * @return an index of these inputs.
+     */
+    private FingerprintIndex computeFingerprints(List<File> protoFiles) {
+        var index = new FingerprintIndex();
+        index.put("protoc.version", protocVersion);
+        index.put("generator.version", getGeneratorVersion());
+        index.put("option.outputDirectory", outputDirectory.getAbsolutePath());
+        if (writeDescriptorSet) {
+            index.put("option.descriptorSetFile",
+                    new File(getDescriptorSetOutputDirectory(), descriptorSetFileName).getAbsolutePath());
+            index.put("option.includeDependenciesInDescriptorSet", "" + includeDependenciesInDescriptorSet);
+            index.put("option.includeSourceInfoInDescriptorSet", "" + includeSourceInfoInDescriptorSet);
+        }
+        if (!getServiceGeneratorParameter().isEmpty()) {
+            index.put("option.serviceOptions", getServiceGeneratorParameter());
+        }
+        if (useDependencyDescriptorSets) {
+            index.put("option.useDependencyDescriptorSets", "true");
+        }
+
+        try {
+            for (File protoFile : protoFiles) {
+                var name = ProtoImportGraph.toName(protoSourceRoot, protoFile);
+                index.put(SOURCE_PREFIX + name, FingerprintIndex.sha256(protoFile));
+            }
+            for (File artifactFile : getDependencyArtifactFiles()) {
+                if (isJar(artifactFile)) {
+                    index.put(ARTIFACT_PREFIX + artifactFile.getAbsolutePath(), getStat(artifactFile));
+                } else if (artifactFile.isDirectory()) {
+                    for (File protoFile : getFiles(artifactFile, DEFAULT_INCLUDES, null)) {
+                        index.put(ARTIFACT_PREFIX + protoFile.getAbsolutePath(), getStat(protoFile));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to read proto files: " + e.getMessage(), e);
+        }
+        return index;
+    }
+
+    private static String getStat(File file) {
+        return file.length() + " " + file.lastModified();
+    }
+
+    /**
+     * Adds the current size and modification time of the dependency descriptor
+     * sets that were used by the previous compilation.
+     *
+     * @return a copy of the given fingerprints, with the added descriptor sets.
+     */
+    private static FingerprintIndex withPreviousArtifacts(FingerprintIndex fingerprints,
+            FingerprintIndex previousFingerprints) {
+        var result = new FingerprintIndex();
+        result.putAll(fingerprints);
+        for (var path : previousFingerprints.getEntries(DESCRIPTOR_SET_ARTIFACT_PREFIX).keySet()) {
+            result.put(DESCRIPTOR_SET_ARTIFACT_PREFIX + path, getStat(new File(path)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a hash of the compiled service generator, so that generated sources
+     * are refreshed whenever the generator changes, even within a snapshot
+     * version.
+     */
+    private static String getGeneratorVersion() {
+        var hashes = new StringBuilder();
+        for (var className : getGeneratorClassNames()) {
+            var resource = "/" + className.replace('.', '/') + ".class";
+            try (var in = ServiceGenerator.class.getResourceAsStream(resource)) {
+                if (in != null) {
+                    hashes.append(FingerprintIndex.sha256(in));
+                }
+            } catch (IOException e) {
+                throw new MojoInitializationException("Unable to read " + resource, e);
+            }
+        }
+        return FingerprintIndex.sha256(hashes.toString().getBytes());
+    }
+
+    /**
+     * Returns the names of {@link ServiceGenerator}, the classes it uses, and all
+     * of their nested classes.
+     */
+    private static List<String> getGeneratorClassNames() {
+        var classNames = new ArrayList<String>();
+        for (var generatorClass : List.of(ServiceGenerator.class, RouteTableGenerator.class,
+                JsonCodecGenerator.class)) {
+            for (var nestMember : generatorClass.getNestMembers()) {
+                classNames.add(nestMember.getName());
+            }
+        }
+        Collections.sort(classNames);
+        return classNames;
+    }
+
+    /**
+     * Checks that the inputs of the previous compilation are identical to the
+     * current inputs, and that the outputs of that compilation are still present.
+     *
+     * @param fingerprints
+     *                             the fingerprints of the current inputs.
+     * @param previousFingerprints
+     *                             the fingerprints of the previous compilation.
+     * @param targetFiles
+     *                             a collection of target files.
+     * @param excludedPrefixes
+     *                             prefixes of fingerprints that are not compared.
+     * @return {@code true}, if the previous compilation is still up to date;
+     *         {@code false}, otherwise.
+     */
+    private boolean checkFilesUpToDate(FingerprintIndex fingerprints, FingerprintIndex previousFingerprints,
+            List<File> targetFiles, String... excludedPrefixes) {
+        if (targetFiles.isEmpty()) {
+            return false;
+        }
+        if (writeDescriptorSet && !new File(getDescriptorSetOutputDirectory(), descriptorSetFileName).exists()) {
+            return false;
+        }
+        if (!fingerprints.equalsExcluding(previousFingerprints, excludedPrefixes)) {
+            return false;
+        }
+        for (var output : previousFingerprints.getEntries(OUTPUT_PREFIX).keySet()) {
+            if (!new File(outputDirectory, output).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the injected build context has changes in any of the specified
+     * files.
+     *
+     * @param files
+     *              files to be checked for changes.
+     * @return {@code true}, if at least one file has changes; {@code false}, if no
+     *         files have changes.
+     */
+    private boolean hasDelta(Iterable<File> files) {
+        for (File file : files) {
+            if (buildContext.hasDelta(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns output directory for descriptor set file. Depends on build phase so
+     * must be defined in concrete
+     * implementation.
+     *
+     * @return output directory for generated descriptor set.
+     */
+    protected File getDescriptorSetOutputDirectory() {
+        return descriptorSetOutputDirectory;
+    }
+
+    protected void doAttachFiles() {
+        if (attachProtoSources) {
+            doAttachProtoSources();
+        }
+        doAttachGeneratedFiles();
+    }
+
+    protected void doAttachProtoSources() {
         projectHelper.addResource(project, protoSourceRoot.getAbsolutePath(),
                 asList(includes), asList(excludes));
     }
 
     protected void doAttachGeneratedFiles() {
-        project.addCompileSourceRoot(outputDirectory.getAbsolutePath());
+        if (!precompile || !installPrecompiledClasses()) {
+            project.addCompileSourceRoot(outputDirectory.getAbsolutePath());
+        }
         if (writeDescriptorSet) {
             File descriptorSetFile = new File(getDescriptorSetOutputDirectory(), descriptorSetFileName);
             projectHelper.attachArtifact(project, "protobin", descriptorSetClassifier, descriptorSetFile);
@@ -586,6 +1779,117 @@ public class ProtocMojo extends AbstractMojo {
         buildContext.refresh(outputDirectory);
     }
 
+    /**
+     * Compiles the generated sources, or fetches them from the cache, and copies
+     * the classes to {@link #classesDirectory}. Class files are only written if
+     * their content changed, and classes that are no longer generated are removed.
+     *
+     * @return {@code true} if the classes were installed, {@code false} if the
+     *         generated sources need to be compiled by the regular build instead.
+     */
+    private boolean installPrecompiledClasses() {
+        var targetRelease = getCompilerRelease();
+        if (targetRelease == null) {
+            getLog().warn("Generated sources are not precompiled, because the Java release is unknown. "
+                    + "Configure the release of maven-compiler-plugin or of this plugin.");
+            return false;
+        }
+
+        var classpath = getDependencyArtifactFiles();
+        var classCacheDirectory = new File(cacheDirectory, "classes");
+        CachePruner.prune(classCacheDirectory, cacheRetentionDays);
+        var classCache = new GeneratedClassCache(classCacheDirectory);
+        var installedIndexFile = new File(project.getBuild().getDirectory(), "protoc-precompiled.txt");
+        var hashesFile = new File(project.getBuild().getDirectory(), "protoc-precompiled-hashes.txt");
+        try {
+            var previousHashes = FingerprintIndex.load(hashesFile);
+            var hashes = new FingerprintIndex();
+            var key = GeneratedClassCache.computeKey(outputDirectory, classpath, targetRelease,
+                    previousHashes, hashes);
+            if (!hashes.equals(previousHashes)) {
+                hashes.save(hashesFile);
+            }
+            var classes = classCache.getClasses(key, outputDirectory, classpath, targetRelease, getLog());
+            if (classes == null) {
+                return false;
+            }
+
+            var previouslyInstalled = FingerprintIndex.load(installedIndexFile).getEntries("").keySet();
+            var installed = new FingerprintIndex();
+            for (var classFile : getFiles(classes, "**/*", null)) {
+                var name = ProtoImportGraph.toName(classes, classFile);
+                copyIfChanged(classFile.toPath(), new File(classesDirectory, name).toPath());
+                installed.put(name, "");
+            }
+            for (var name : previouslyInstalled) {
+                if (installed.get(name) == null) {
+                    new File(classesDirectory, name).delete();
+                }
+            }
+            installed.save(installedIndexFile);
+            return true;
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to precompile generated sources", e);
+        }
+    }
+
+    /**
+     * Determines the Java release that the regular build compiles for, so that
+     * precompiled classes are compatible with it.
+     *
+     * @return the release, for example {@code 11}, or {@code null} if unknown.
+     */
+    String getCompilerRelease() {
+        if (release != null && !release.isBlank()) {
+            return normalizeRelease(release);
+        }
+
+        var candidates = new ArrayList<String>();
+        var compilerPlugin = project.getPlugin("org.apache.maven.plugins:maven-compiler-plugin");
+        if (compilerPlugin != null) {
+            var configurations = new ArrayList<Object>();
+            var execution = compilerPlugin.getExecutionsAsMap().get("default-compile");
+            if (execution != null) {
+                configurations.add(execution.getConfiguration());
+            }
+            configurations.add(compilerPlugin.getConfiguration());
+            for (var configuration : configurations) {
+                if (configuration instanceof Xpp3Dom) {
+                    for (var name : Arrays.asList("release", "target")) {
+                        var child = ((Xpp3Dom) configuration).getChild(name);
+                        if (child != null) {
+                            candidates.add(child.getValue());
+                        }
+                    }
+                }
+            }
+        }
+        candidates.add(project.getProperties().getProperty("maven.compiler.release"));
+        candidates.add(project.getProperties().getProperty("maven.compiler.target"));
+
+        for (var candidate : candidates) {
+            // Skip expressions that were not interpolated
+            if (candidate != null && !candidate.isBlank() && !candidate.contains("${")) {
+                return normalizeRelease(candidate);
+            }
+        }
+        return null;
+    }
+
+    private static String normalizeRelease(String value) {
+        var trimmed = value.trim();
+        return trimmed.startsWith("1.") ? trimmed.substring(2) : trimmed;
+    }
+
+    private static void copyIfChanged(Path sourceFile, Path targetFile) throws IOException {
+        if (Files.isRegularFile(targetFile) && Files.size(targetFile) == Files.size(sourceFile)
+                && Arrays.equals(Files.readAllBytes(targetFile), Files.readAllBytes(sourceFile))) {
+            return;
+        }
+        Files.createDirectories(targetFile.getParent());
+        Files.copy(sourceFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     /**
      * Gets the {@link File} for each dependency artifact.
      *
@@ -604,81 +1908,398 @@ public class ProtocMojo extends AbstractMojo {
     }
 
     /**
-     * Unpacks proto descriptors that are bundled inside dependent artifacts into a
-     * temporary directory. This is needed
-     * because protobuf compiler cannot handle imported descriptors that are packed
-     * inside jar files.
+     * Makes proto descriptors that are bundled inside dependent artifacts available
+     * to protobuf compiler, which cannot handle imported descriptors that are
+     * packed inside jar files.
+     * <p>
+     * Only the descriptors that are reachable through the imports of the source
+     * definitions are extracted. They are gathered in
+     * {@link #temporaryProtoFileDirectory}, which protoc then uses as a single
+     * import root. Jars that are not yet known to the extraction cache are scanned
+     * concurrently.
+     * <p>
+     * If {@link #useDependencyDescriptorSets} is enabled, dependencies that have a
+     * {@code protobin} descriptor set are not extracted. Their descriptor set is
+     * passed to protoc instead, which avoids parsing their definitions again.
      *
-     * @param temporaryProtoFileDirectory
-     *                                    temporary directory to serve as root for
-     *                                    unpacked structure.
      * @param classpathElementFiles
-     *                                    classpath elements, can be either jar
-     *                                    files or directories.
-     * @return a list of import roots for protobuf compiler (these will all be
-     *         subdirectories of the temporary
-     *         directory).
-     */
-    protected List<File> makeProtoPathFromJars(File temporaryProtoFileDirectory, Iterable<File> classpathElementFiles) {
-        if (!classpathElementFiles.iterator().hasNext()) {
-            return emptyList();
+     *                              classpath elements, can be either jar files or
+     *                              directories.
+     * @param graph
+     *                              import graph of the source definitions.
+     * @param fingerprints
+     *                              index where the hashes of the proto files found
+     *                              in each classpath element are recorded.
+     * @return import roots and descriptor sets for protobuf compiler.
+     */
+    protected DependencyProtoPath makeProtoPathFromJars(Iterable<File> classpathElementFiles, ProtoImportGraph graph,
+            FingerprintIndex fingerprints) {
+        var extractionCache = new ProtoExtractionCache(new File(cacheDirectory, "protos"));
+        extractionCache.prune(cacheRetentionDays);
+        var missingDescriptorSets = new MissingDescriptorSets();
+        try {
+            // Scan unknown jars first, so that the loop below only does lookups
+            var pendingJars = new ArrayList<File>();
+            for (File classpathElementFile : classpathElementFiles) {
+                if (isJar(classpathElementFile) && extractionCache.lookup(classpathElementFile) == null) {
+                    pendingJars.add(classpathElementFile);
+                }
+            }
+            var extractions = scanJars(extractionCache, pendingJars);
+
+            // Jar extractions and directories, in classpath order
+            List<Object> providers = new ArrayList<>();
+            List<File> protoDirectories = new ArrayList<>();
+            List<DescriptorSetProvider> descriptorSets = new ArrayList<>();
+            for (File classpathElementFile : classpathElementFiles) {
+                if (isJar(classpathElementFile)) {
+                    var extraction = extractions.get(classpathElementFile);
+                    if (extraction == null) {
+                        extraction = extractionCache.scan(classpathElementFile);
+                    }
+                    if (!extraction.isEmpty()) {
+                        var descriptorSet = findDependencyDescriptorSet(classpathElementFile, missingDescriptorSets);
+                        if (descriptorSet != null) {
+                            descriptorSets.add(loadDescriptorSet(descriptorSet, fingerprints));
+                        } else {
+                            fingerprints.put(DEPENDENCY_PREFIX + classpathElementFile.getAbsolutePath(),
+                                    extraction.protoHash);
+                            providers.add(extraction);
+                        }
+                    }
+                } else if (classpathElementFile.isDirectory()) {
+                    var descriptorSet = findDependencyDescriptorSet(classpathElementFile, null);
+                    if (descriptorSet != null) {
+                        descriptorSets.add(loadDescriptorSet(descriptorSet, fingerprints));
+                        continue;
+                    }
+                    List<File> protoFiles;
+                    try {
+                        protoFiles = getFiles(classpathElementFile, DEFAULT_INCLUDES, null);
+                        for (File protoFile : protoFiles) {
+                            fingerprints.put(DEPENDENCY_PREFIX + protoFile.getAbsolutePath(),
+                                    FingerprintIndex.sha256(protoFile));
+                        }
+                    } catch (IOException e) {
+                        throw new MojoInitializationException(
+                                "Unable to scan for proto files in: " + classpathElementFile.getAbsolutePath(), e);
+                    }
+                    if (!protoFiles.isEmpty() && !protoDirectories.contains(classpathElementFile)) {
+                        providers.add(classpathElementFile);
+                        protoDirectories.add(classpathElementFile);
+                    }
+                }
+            }
+
+            // Like protoc, only consult descriptor sets for imports not found on the proto path
+            providers.addAll(descriptorSets);
+
+            var protoPath = new DependencyProtoPath();
+            var extractedFiles = resolveImports(extractionCache, providers, graph, protoPath.descriptorSetFiles);
+            syncTemporaryProtoFileDirectory(extractedFiles);
+
+            if (!extractedFiles.isEmpty()) {
+                protoPath.protoPathElements.add(temporaryProtoFileDirectory);
+            }
+            protoPath.protoPathElements.addAll(protoDirectories);
+            return protoPath;
+        } finally {
+            extractionCache.save();
+            missingDescriptorSets.save();
         }
-        // clean the temporary directory to ensure that stale files aren't used
-        if (temporaryProtoFileDirectory.exists()) {
-            try {
-                cleanDirectory(temporaryProtoFileDirectory);
-            } catch (IOException e) {
-                throw new MojoInitializationException("Unable to clean up temporary proto file directory", e);
-            }
-        }
-        List<File> protoDirectories = new ArrayList<>();
-        for (File classpathElementFile : classpathElementFiles) {
-            if (classpathElementFile.isFile() && classpathElementFile.canRead() &&
-                    classpathElementFile.getName().endsWith(".jar")) {
-
-                // create the jar file. the constructor validates.
-                try (JarFile classpathJar = new JarFile(classpathElementFile)) {
-                    Enumeration<JarEntry> jarEntries = classpathJar.entries();
-                    while (jarEntries.hasMoreElements()) {
-                        JarEntry jarEntry = jarEntries.nextElement();
-                        String jarEntryName = jarEntry.getName();
-                        if (!jarEntry.isDirectory()
-                                && SelectorUtils.matchPath(DEFAULT_INCLUDES, jarEntryName, "/", true)) {
-                            File jarDirectory;
-                            try {
-                                jarDirectory = new File(temporaryProtoFileDirectory,
-                                        truncatePath(classpathJar.getName()));
-                                File uncompressedCopy = new File(jarDirectory, jarEntryName);
-                                FileUtils.mkdir(uncompressedCopy.getParentFile().getAbsolutePath());
-                                copyStreamToFile(new RawInputStreamFacade(classpathJar.getInputStream(jarEntry)),
-                                        uncompressedCopy);
-                            } catch (IOException e) {
-                                throw new MojoInitializationException("Unable to unpack proto files", e);
-                            }
-                            protoDirectories.add(jarDirectory);
+    }
+
+    /**
+     * Follows the imports of the source definitions through the given providers,
+     * the same way protoc would resolve them.
+     *
+     * @param usedDescriptorSets
+     *                           collects the descriptor sets that resolve at least
+     *                           one import.
+     * @return imported files that need to be extracted from a jar, mapped to the
+     *         extracted file.
+     */
+    private Map<String, File> resolveImports(ProtoExtractionCache extractionCache, List<Object> providers,
+            ProtoImportGraph graph, List<File> usedDescriptorSets) {
+        var result = new TreeMap<String, File>();
+        var visited = new HashSet<String>(graph.getFiles());
+        var queue = new ArrayDeque<String>();
+        for (var name : graph.getFiles()) {
+            queue.addAll(graph.getImports(name));
+        }
+        while (!queue.isEmpty()) {
+            var name = queue.poll();
+            if (!visited.add(name)) {
+                continue;
+            }
+            File file = null;
+            for (var provider : providers) {
+                if (provider instanceof DescriptorSetProvider) {
+                    var descriptorSet = (DescriptorSetProvider) provider;
+                    var fileDescriptor = descriptorSet.files.get(name);
+                    if (fileDescriptor != null) {
+                        if (!usedDescriptorSets.contains(descriptorSet.file)) {
+                            usedDescriptorSets.add(descriptorSet.file);
                         }
+                        queue.addAll(fileDescriptor.getDependencyList());
+                        break;
+                    }
+                } else if (provider instanceof ProtoExtractionCache.Extraction) {
+                    var extraction = (ProtoExtractionCache.Extraction) provider;
+                    if (extraction.contains(name)) {
+                        file = extractionCache.getFile(extraction, name);
+                        result.put(name, file);
+                        break;
+                    }
+                } else {
+                    var candidate = new File((File) provider, name);
+                    if (candidate.isFile()) {
+                        file = candidate;
+                        break;
                     }
-                } catch (IOException e) {
-                    throw new MojoInitializationException(
-                            "Not a readable JAR artifact: " + classpathElementFile.getAbsolutePath(), e);
                 }
-            } else if (classpathElementFile.isDirectory()) {
-                List<File> protoFiles;
+            }
+            // Unresolved imports are left for protoc to report
+            if (file != null) {
                 try {
-                    protoFiles = getFiles(classpathElementFile, DEFAULT_INCLUDES, null);
+                    queue.addAll(ProtoImportGraph.parseImports(Files.readString(file.toPath(), UTF_8)));
                 } catch (IOException e) {
-                    throw new MojoInitializationException(
-                            "Unable to scan for proto files in: " + classpathElementFile.getAbsolutePath(), e);
+                    throw new MojoInitializationException("Unable to read " + file, e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Links or copies extracted files into {@link #temporaryProtoFileDirectory},
+     * and removes files that are no longer imported.
+     */
+    private void syncTemporaryProtoFileDirectory(Map<String, File> extractedFiles) {
+        try {
+            if (temporaryProtoFileDirectory.isDirectory()) {
+                for (var file : getFiles(temporaryProtoFileDirectory, "**", null)) {
+                    var name = ProtoImportGraph.toName(temporaryProtoFileDirectory, file);
+                    if (!extractedFiles.containsKey(name)) {
+                        file.delete();
+                    }
+                }
+            }
+            for (var entry : extractedFiles.entrySet()) {
+                var source = entry.getValue().toPath();
+                var target = new File(temporaryProtoFileDirectory, entry.getKey()).toPath();
+                if (Files.exists(target)) {
+                    if (Files.isSameFile(source, target)
+                            || Arrays.equals(Files.readAllBytes(source), Files.readAllBytes(target))) {
+                        continue;
+                    }
+                    Files.delete(target);
+                }
+                Files.createDirectories(target.getParent());
+                try {
+                    Files.createLink(target, source);
+                } catch (IOException | UnsupportedOperationException e) {
+                    // Different file store
+                    Files.copy(source, target);
                 }
-                if (!protoFiles.isEmpty()) {
-                    protoDirectories.add(classpathElementFile);
+            }
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to populate " + temporaryProtoFileDirectory, e);
+        }
+    }
+
+    private static boolean isJar(File classpathElementFile) {
+        return classpathElementFile.isFile() && classpathElementFile.canRead()
+                && classpathElementFile.getName().endsWith(".jar");
+    }
+
+    /**
+     * Finds the {@code protobin} descriptor set of the dependency that provides the
+     * given classpath element. Descriptor sets attached by a project of the current
+     * reactor take precedence.
+     *
+     * @param classpathElementFile
+     *                             the file of a dependency artifact.
+     * @param missingDescriptorSets
+     *                              descriptor sets that were not found in the
+     *                              repositories before, or {@code null} to not look
+     *                              in the repositories if the dependency is not part
+     *                              of the reactor.
+     * @return the descriptor set file, or {@code null} if there is none.
+     */
+    private File findDependencyDescriptorSet(File classpathElementFile, MissingDescriptorSets missingDescriptorSets) {
+        if (!useDependencyDescriptorSets) {
+            return null;
+        }
+        Artifact artifact = null;
+        for (Artifact candidate : project.getArtifacts()) {
+            if (classpathElementFile.equals(candidate.getFile())) {
+                artifact = candidate;
+                break;
+            }
+        }
+        if (artifact == null) {
+            return null;
+        }
+
+        for (MavenProject reactorProject : session.getProjects()) {
+            if (reactorProject.getGroupId().equals(artifact.getGroupId())
+                    && reactorProject.getArtifactId().equals(artifact.getArtifactId())
+                    && reactorProject.getVersion().equals(artifact.getBaseVersion())) {
+                for (Artifact attachedArtifact : reactorProject.getAttachedArtifacts()) {
+                    if ("protobin".equals(attachedArtifact.getType())
+                            && Objects.equals(descriptorSetClassifier, attachedArtifact.getClassifier())
+                            && attachedArtifact.getFile() != null
+                            && attachedArtifact.getFile().isFile()) {
+                        return attachedArtifact.getFile();
+                    }
                 }
+                return null;
+            }
+        }
+        if (missingDescriptorSets == null) {
+            return null;
+        }
+
+        Artifact descriptorSetArtifact = repositorySystem.createArtifactWithClassifier(
+                artifact.getGroupId(),
+                artifact.getArtifactId(),
+                artifact.getVersion(),
+                "protobin",
+                descriptorSetClassifier);
+        descriptorSetArtifact.setScope(Artifact.SCOPE_COMPILE);
+
+        // Avoid remote lookups when possible, this happens before the staleness check
+        var localFile = new File(localRepository.getBasedir(), localRepository.pathOf(descriptorSetArtifact));
+        if (localFile.isFile()) {
+            return localFile;
+        }
+        var key = descriptorSetArtifact.getId();
+        if (missingDescriptorSets.contains(key)) {
+            return null;
+        }
+
+        ArtifactResolutionRequest request = new ArtifactResolutionRequest()
+                .setArtifact(descriptorSetArtifact)
+                .setResolveRoot(true)
+                .setResolveTransitively(false)
+                .setLocalRepository(localRepository)
+                .setRemoteRepositories(remoteRepositories)
+                .setOffline(session.isOffline())
+                .setForceUpdate(session.getRequest().isUpdateSnapshots())
+                .setServers(session.getRequest().getServers())
+                .setMirrors(session.getRequest().getMirrors())
+                .setProxies(session.getRequest().getProxies());
+
+        ArtifactResolutionResult result = repositorySystem.resolve(request);
+        if (result.hasExceptions() || result.hasMissingArtifacts() || descriptorSetArtifact.getFile() == null
+                || !descriptorSetArtifact.getFile().isFile()) {
+            if (getLog().isDebugEnabled()) {
+                getLog().debug("No descriptor set available for " + artifact);
+            }
+            if (!session.isOffline()) {
+                missingDescriptorSets.add(key);
+            }
+            return null;
+        }
+        if (getLog().isDebugEnabled()) {
+            getLog().debug("Resolved descriptor set: " + descriptorSetArtifact);
+        }
+        return descriptorSetArtifact.getFile();
+    }
+
+    /**
+     * Dependency descriptor sets that could not be resolved from the repositories.
+     * Entries expire after a day, similar to the default update policy of Maven
+     * repositories.
+     */
+    private class MissingDescriptorSets {
+
+        private static final long EXPIRY_MILLIS = 24 * 60 * 60 * 1000L;
+
+        private final File file = new File(cacheDirectory, "missing-descriptor-sets.txt");
+        private final FingerprintIndex index = FingerprintIndex.load(file);
+        private boolean modified;
+
+        boolean contains(String artifactId) {
+            if (session.getRequest().isUpdateSnapshots()) {
+                return false;
+            }
+            var lookupTime = index.get(artifactId);
+            try {
+                return lookupTime != null && System.currentTimeMillis() - Long.parseLong(lookupTime) < EXPIRY_MILLIS;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        void add(String artifactId) {
+            index.put(artifactId, Long.toString(System.currentTimeMillis()));
+            modified = true;
+        }
+
+        void save() {
+            if (modified) {
+                index.save(file);
+            }
+        }
+    }
+
+    private static DescriptorSetProvider loadDescriptorSet(File file, FingerprintIndex fingerprints) {
+        try {
+            var bytes = Files.readAllBytes(file.toPath());
+            fingerprints.put(DESCRIPTOR_SET_PREFIX + file.getAbsolutePath(), FingerprintIndex.sha256(bytes));
+            fingerprints.put(DESCRIPTOR_SET_ARTIFACT_PREFIX + file.getAbsolutePath(), getStat(file));
+
+            var provider = new DescriptorSetProvider(file);
+            for (var fileDescriptor : FileDescriptorSet.parseFrom(bytes).getFileList()) {
+                provider.files.put(fileDescriptor.getName(), fileDescriptor);
+            }
+            return provider;
+        } catch (IOException e) {
+            throw new MojoInitializationException("Unable to read descriptor set " + file, e);
+        }
+    }
+
+    /**
+     * Scans the given jars on a pool bounded by the number of available
+     * processors.
+     */
+    private Map<File, ProtoExtractionCache.Extraction> scanJars(ProtoExtractionCache extractionCache,
+            List<File> jarFiles) {
+        var result = new HashMap<File, ProtoExtractionCache.Extraction>();
+        if (jarFiles.size() <= 1) {
+            for (var jarFile : jarFiles) {
+                result.put(jarFile, extractionCache.scan(jarFile));
+            }
+            return result;
+        }
+
+        int poolSize = Math.min(jarFiles.size(), Runtime.getRuntime().availableProcessors());
+        var executor = Executors.newFixedThreadPool(poolSize);
+        try {
+            var futures = new LinkedHashMap<File, Future<ProtoExtractionCache.Extraction>>();
+            for (var jarFile : jarFiles) {
+                futures.put(jarFile, executor.submit(() -> extractionCache.scan(jarFile)));
             }
+            for (var entry : futures.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+            return result;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MojoInitializationException("Unable to scan for proto files", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoInitializationException("Interrupted while scanning for proto files", e);
+        } finally {
+            executor.shutdownNow();
         }
-        return protoDirectories;
     }
 
-    private List<File> findProtoFilesInDirectory(File directory) {
+    List<File> findProtoFilesInDirectory(File directory) {
         if (directory == null) {
             throw new MojoConfigurationException("'directory' is null");
         }
@@ -697,37 +2318,10 @@ public class ProtocMojo extends AbstractMojo {
     }
 
     /**
-     * Truncates the path of jar files so that they are relative to the local
-     * repository.
-     *
-     * @param jarPath
-     *                the full path of a jar file.
-     * @return the truncated path relative to the local repository or root of the
-     *         drive.
+     * Resolves a binary artifact, and installs it as an executable in the given
+     * directory. An installed copy is reused if it matches the resolved artifact.
      */
-    private String truncatePath(String jarPath) {
-        String repository = localRepository.getBasedir().replace('\\', '/');
-        if (!repository.endsWith("/")) {
-            repository += "/";
-        }
-
-        String path = jarPath.replace('\\', '/');
-        int repositoryIndex = path.indexOf(repository);
-        if (repositoryIndex != -1) {
-            path = path.substring(repositoryIndex + repository.length());
-        }
-
-        // By now the path should be good, but do a final check to fix windows machines.
-        int colonIndex = path.indexOf(':');
-        if (colonIndex != -1) {
-            // 2 = :\ in C:\
-            path = path.substring(colonIndex + 2);
-        }
-
-        return path;
-    }
-
-    private File resolveBinaryArtifact(Artifact artifact) {
+    private File installBinaryArtifact(Artifact artifact, File directory) {
         ArtifactResolutionResult result;
         try {
             ArtifactResolutionRequest request = new ArtifactResolutionRequest()
@@ -762,7 +2356,7 @@ public class ProtocMojo extends AbstractMojo {
             getLog().debug("Resolved artifact: " + resolvedBinaryArtifact);
         }
 
-        // Copy the file to the project build directory and make it executable
+        // Copy the file to the toolchain directory and make it executable
         File sourceFile = resolvedBinaryArtifact.getFile();
         String sourceFileName = sourceFile.getName();
         String targetFileName;
@@ -771,24 +2365,18 @@ public class ProtocMojo extends AbstractMojo {
         } else {
             targetFileName = sourceFileName;
         }
-        File targetFile = new File(protocPluginDirectory, targetFileName);
-        if (targetFile.exists()) {
+        File targetFile = new File(directory, targetFileName);
+        if (targetFile.isFile() && targetFile.length() == sourceFile.length()
+                && (Os.isFamily(Os.FAMILY_WINDOWS) || targetFile.canExecute())) {
             // The file must have already been copied in a prior plugin execution/invocation
             getLog().debug("Executable file already exists: " + targetFile.getAbsolutePath());
+            CachePruner.touch(targetFile);
             return targetFile;
         }
         try {
-            FileUtils.forceMkdir(protocPluginDirectory);
+            ProtocToolchain.writeAtomically(targetFile, Files.readAllBytes(sourceFile.toPath()), true);
         } catch (IOException e) {
-            throw new MojoInitializationException("Unable to create directory " + protocPluginDirectory, e);
-        }
-        try {
-            FileUtils.copyFile(sourceFile, targetFile);
-        } catch (IOException e) {
-            throw new MojoInitializationException("Unable to copy the file to " + protocPluginDirectory, e);
-        }
-        if (!Os.isFamily(Os.FAMILY_WINDOWS)) {
-            targetFile.setExecutable(true);
+            throw new MojoInitializationException("Unable to copy the file to " + directory, e);
         }
 
         if (getLog().isDebugEnabled()) {
@@ -0,0 +1,115 @@
+package org.yamcs.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Supplier;
+
+import org.apache.maven.execution.MavenSession;
+
+/**
+ * The {@code protoc} executable and the {@code protoc-gen-yamcs} plugin, shared
+ * by all executions of {@link ProtocMojo} within a Maven session.
+ * <p>
+ * Each tool is prepared at most once per session, even when modules are built
+ * concurrently. The prepared files live in a machine-wide directory, and are
+ * always written through an atomic rename, so that concurrent sessions may use
+ * the same directory. Reused files are touched, so that {@link CachePruner} can
+ * remove files of tool versions and configurations that are no longer used.
+ */
+class ProtocToolchain {
+
+    private static final String KEY_PREFIX = ProtocToolchain.class.getName() + ":";
+
+    private final File directory;
+
+    private final Object protocLock = new Object();
+    private File protocExecutable;
+
+    private final Object pluginLock = new Object();
+    private File pluginExecutable;
+
+    private ProtocToolchain(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the toolchain of the given session, creating it on first use.
+     *
+     * @param session
+     *                      the current Maven session.
+     * @param directory
+     *                      the machine-wide directory in which tools are
+     *                      prepared.
+     * @param protocVersion
+     *                      the version of {@code protoc}, and of the
+     *                      {@code protobuf-java} runtime used by the plugin.
+     */
+    static ProtocToolchain get(MavenSession session, File directory, String protocVersion) {
+        var data = session.getRepositorySession().getData();
+        var key = KEY_PREFIX + directory.getAbsolutePath() + ":" + protocVersion;
+
+        var toolchain = data.get(key);
+        if (toolchain == null) {
+            data.set(key, null, new ProtocToolchain(directory));
+            toolchain = data.get(key);
+        }
+        if (toolchain instanceof ProtocToolchain) {
+            return (ProtocToolchain) toolchain;
+        } else {
+            // Created by another version of this plugin, in another class realm
+            return new ProtocToolchain(directory);
+        }
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the {@code protoc} executable, using the given installer if it was not
+     * yet prepared in this session.
+     */
+    File getProtocExecutable(Supplier<File> installer) {
+        synchronized (protocLock) {
+            if (protocExecutable == null || !protocExecutable.isFile()) {
+                protocExecutable = installer.get();
+            }
+            return protocExecutable;
+        }
+    }
+
+    /**
+     * Returns the {@code protoc-gen-yamcs} executable, using the given installer if
+     * it was not yet prepared in this session.
+     */
+    File getPluginExecutable(Supplier<File> installer) {
+        synchronized (pluginLock) {
+            if (pluginExecutable == null || !pluginExecutable.isFile()) {
+                pluginExecutable = installer.get();
+            }
+            return pluginExecutable;
+        }
+    }
+
+    /**
+     * Writes a file by renaming a temporary file, so that the target file is
+     * either complete or absent.
+     */
+    static void writeAtomically(File targetFile, byte[] content, boolean executable) throws IOException {
+        Files.createDirectories(targetFile.getParentFile().toPath());
+        Path tmpFile = Files.createTempFile(targetFile.getParentFile().toPath(), targetFile.getName(), ".tmp");
+        try {
+            Files.write(tmpFile, content);
+            if (executable) {
+                tmpFile.toFile().setExecutable(true);
+            }
+            Files.move(tmpFile, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+}
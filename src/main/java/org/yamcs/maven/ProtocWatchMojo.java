@@ -0,0 +1,160 @@
+package org.yamcs.maven;
+
+import static java.lang.String.format;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.codehaus.plexus.util.cli.CommandLineException;
+
+/**
+ * Watches the proto source root, and regenerates Java sources whenever a
+ * definition changes. Runs until interrupted.
+ * <p>
+ * The {@code protoc} toolchain and the resolved dependency definitions are kept
+ * between changes, and only the sources affected by a change are recompiled.
+ */
+@Mojo(name = "protoc-watch", requiresDependencyResolution = ResolutionScope.COMPILE)
+public class ProtocWatchMojo extends ProtocMojo {
+
+    /**
+     * Time in milliseconds to wait for further changes before regenerating, so
+     * that a burst of saves results in a single compilation.
+     */
+    @Parameter(property = "protoc.watchDelay", defaultValue = "100")
+    private long watchDelay;
+
+    // Dependency resolution of the previous compilation, reused while the
+    // sources import the same dependency definitions.
+    private Set<String> dependencyImports;
+    private DependencyProtoPath dependencyProtoPath;
+    private FingerprintIndex dependencyFingerprints;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (skipMojo()) {
+            return;
+        }
+        if (!protoSourceRoot.isDirectory()) {
+            throw new MojoExecutionException(format("%s is not a directory", protoSourceRoot));
+        }
+
+        var executor = newExecutor();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            var tools = prepareTools(executor);
+            register(watchService, protoSourceRoot.toPath());
+            regenerate(tools);
+            getLog().info(format("Watching %s for changes", protoSourceRoot));
+
+            while (true) {
+                boolean changed = processEvents(watchService, watchService.take());
+
+                // Wait until changes settle
+                WatchKey key;
+                while ((key = watchService.poll(watchDelay, MILLISECONDS)) != null) {
+                    changed |= processEvents(watchService, key);
+                }
+                if (changed) {
+                    regenerate(tools);
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to watch " + protoSourceRoot, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    DependencyProtoPath resolveDependencyProtoPath(ProtoImportGraph graph, FingerprintIndex fingerprints) {
+        var imports = new TreeSet<String>();
+        for (var name : graph.getFiles()) {
+            imports.addAll(graph.getImports(name));
+        }
+        imports.removeAll(graph.getFiles());
+
+        if (!imports.equals(dependencyImports)) {
+            dependencyFingerprints = new FingerprintIndex();
+            dependencyProtoPath = super.resolveDependencyProtoPath(graph, dependencyFingerprints);
+            dependencyImports = imports;
+        }
+        fingerprints.putAll(dependencyFingerprints);
+        return dependencyProtoPath;
+    }
+
+    private void regenerate(PreparedTools tools) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            var protoFiles = findProtoFilesInDirectory(protoSourceRoot);
+            if (protoFiles.isEmpty()) {
+                getLog().info("No proto files to compile.");
+                return;
+            }
+            generate(protoFiles, findGeneratedFilesInDirectory(outputDirectory), tools);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            getLog().info(format("Done in %d ms", millis));
+        } catch (MojoFailureException | MojoConfigurationException | MojoInitializationException
+                | CommandLineException e) {
+            // Keep watching, a later change may fix this
+            getLog().error(e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the events of a signalled key.
+     *
+     * @return whether any of the events may affect the generated files.
+     */
+    private boolean processEvents(WatchService watchService, WatchKey key) throws IOException {
+        var directory = (Path) key.watchable();
+        boolean changed = false;
+        for (var event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                changed = true;
+                continue;
+            }
+            var path = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                register(watchService, path);
+                changed = true;
+            } else if (event.kind() == ENTRY_DELETE || path.toString().endsWith(".proto")) {
+                // A deleted path may have been a directory with definitions
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Watches a directory and all of its subdirectories.
+     */
+    private static void register(WatchService watchService, Path directory) throws IOException {
+        try (Stream<Path> stream = Files.walk(directory)) {
+            for (var path : stream.filter(Files::isDirectory).collect(Collectors.toList())) {
+                path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            }
+        }
+    }
+}
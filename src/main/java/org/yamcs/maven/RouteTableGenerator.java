@@ -0,0 +1,485 @@
+package org.yamcs.maven;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.yamcs.maven.ServiceGenerator.SourceBuilder;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorResponse.File;
+
+/**
+ * Generates HTTP route tables from the {@code route} option of service methods.
+ * <p>
+ * The option is an extension of {@code google.protobuf.MethodOptions} that is
+ * defined by the Yamcs API, rather than by anything on the classpath of the
+ * generator. It is therefore interpreted dynamically, from the definition found
+ * among the files of the request.
+ * <p>
+ * Each proto file with routed methods gets a {@code <Outer>Routes} class. The
+ * routes are compiled into a trie of path segments, which is emitted as array
+ * constants, so that matching a path needs neither regular expressions nor any
+ * setup at runtime.
+ */
+class RouteTableGenerator {
+
+    private static final String ROUTE_EXTENSION = "route";
+    private static final String METHOD_OPTIONS = ".google.protobuf.MethodOptions";
+    private static final List<String> VERBS = List.of("get", "post", "put", "patch", "delete");
+
+    private final Map<String, FileDescriptorProto> filesByName = new HashMap<>();
+    private final Map<String, FileDescriptor> descriptors = new HashMap<>();
+
+    private FileDescriptorProto routeFile;
+    private int routeFieldNumber;
+    private FieldDescriptor routeExtension;
+    private ExtensionRegistry registry;
+
+    RouteTableGenerator(CodeGeneratorRequest request) {
+        for (var file : request.getProtoFileList()) {
+            filesByName.put(file.getName(), file);
+            for (var extension : file.getExtensionList()) {
+                if (extension.getName().equals(ROUTE_EXTENSION) && extension.getExtendee().equals(METHOD_OPTIONS)
+                        && extension.getType() == FieldDescriptorProto.Type.TYPE_MESSAGE) {
+                    routeFile = file;
+                    routeFieldNumber = extension.getNumber();
+                }
+            }
+        }
+    }
+
+    /**
+     * A route of a method.
+     */
+    private static final class Route {
+        final String serviceName;
+        final int methodIndex;
+        final String verb;
+        final String pattern;
+        final String body;
+        final List<String> params = new ArrayList<>();
+
+        Route(String serviceName, int methodIndex, String verb, String pattern, String body) {
+            this.serviceName = serviceName;
+            this.methodIndex = methodIndex;
+            this.verb = verb;
+            this.pattern = pattern;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A node of the trie, reached by matching one path segment.
+     */
+    private static final class Node {
+        int id;
+        final TreeMap<String, Node> literals = new TreeMap<>();
+        final List<ParamEdge> params = new ArrayList<>();
+        final List<Integer> routes = new ArrayList<>();
+        final List<Integer> greedyRoutes = new ArrayList<>();
+    }
+
+    /**
+     * A segment that captures a parameter, optionally surrounded by literal text,
+     * as in {@code {instance}:start}.
+     */
+    private static final class ParamEdge {
+        final String prefix;
+        final String suffix;
+        final Node target = new Node();
+
+        ParamEdge(String prefix, String suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+
+    /**
+     * Generates the route table of a file.
+     *
+     * @throws IllegalStateException
+     *                               if routes cannot be interpreted.
+     * @return the generated file, or {@code null} if no method of the file has a
+     *         route.
+     */
+    File.Builder generate(FileDescriptorProto file, String outerClassname) {
+        if (routeFile == null || !hasRoutes(file)) {
+            return null;
+        }
+
+        var routes = new ArrayList<Route>();
+        for (var service : file.getServiceList()) {
+            for (int i = 0; i < service.getMethodCount(); i++) {
+                var options = service.getMethod(i).getOptions();
+                if (options.getUnknownFields().hasField(routeFieldNumber)) {
+                    var route = (Message) parseOptions(options.toByteString()).getField(getRouteExtension());
+                    addRoutes(routes, service.getName(), i, route);
+                }
+            }
+        }
+
+        var root = new Node();
+        for (int i = 0; i < routes.size(); i++) {
+            addToTrie(root, routes.get(i), i);
+        }
+        var nodes = new ArrayList<Node>();
+        numberNodes(root, nodes);
+        return generateSource(file, outerClassname, routes, nodes);
+    }
+
+    private boolean hasRoutes(FileDescriptorProto file) {
+        for (var service : file.getServiceList()) {
+            for (var method : service.getMethodList()) {
+                if (method.getOptions().getUnknownFields().hasField(routeFieldNumber)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Synchronized, because files of a request are generated concurrently
+    private synchronized FieldDescriptor getRouteExtension() {
+        if (routeExtension == null) {
+            var descriptor = buildDescriptor(routeFile.getName());
+            for (var extension : descriptor.getExtensions()) {
+                if (extension.getName().equals(ROUTE_EXTENSION)) {
+                    routeExtension = extension;
+                }
+            }
+            registry = ExtensionRegistry.newInstance();
+            registry.add(routeExtension, DynamicMessage.getDefaultInstance(routeExtension.getMessageType()));
+        }
+        return routeExtension;
+    }
+
+    private FileDescriptor buildDescriptor(String name) {
+        var descriptor = descriptors.get(name);
+        if (descriptor == null) {
+            var proto = filesByName.get(name);
+            if (proto == null) {
+                throw new IllegalStateException("Missing definition of " + name);
+            }
+            var dependencies = new FileDescriptor[proto.getDependencyCount()];
+            for (int i = 0; i < dependencies.length; i++) {
+                dependencies[i] = buildDescriptor(proto.getDependency(i));
+            }
+            try {
+                descriptor = FileDescriptor.buildFrom(proto, dependencies);
+            } catch (DescriptorValidationException e) {
+                throw new IllegalStateException("Invalid definition of " + name + ": " + e.getMessage(), e);
+            }
+            descriptors.put(name, descriptor);
+        }
+        return descriptor;
+    }
+
+    private DynamicMessage parseOptions(ByteString options) {
+        var optionsType = getRouteExtension().getContainingType();
+        try {
+            return DynamicMessage.parseFrom(optionsType, options, registry);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Unable to interpret method options: " + e.getMessage(), e);
+        }
+    }
+
+    private static void addRoutes(List<Route> routes, String serviceName, int methodIndex, Message route) {
+        var type = route.getDescriptorForType();
+        var bodyField = type.findFieldByName("body");
+        var body = (bodyField != null && route.hasField(bodyField)) ? (String) route.getField(bodyField) : null;
+        for (var verb : VERBS) {
+            var field = type.findFieldByName(verb);
+            if (field != null && route.hasField(field)) {
+                var pattern = (String) route.getField(field);
+                routes.add(new Route(serviceName, methodIndex, verb.toUpperCase(), pattern, body));
+            }
+        }
+
+        var bindingsField = type.findFieldByName("additional_bindings");
+        if (bindingsField != null && bindingsField.isRepeated()) {
+            for (int i = 0; i < route.getRepeatedFieldCount(bindingsField); i++) {
+                var binding = (Message) route.getRepeatedField(bindingsField, i);
+                addRoutes(routes, serviceName, methodIndex, binding);
+            }
+        }
+    }
+
+    /**
+     * Adds a route to the trie. Segments of the form {@code {name}} capture one
+     * segment, {@code {name?}} optionally captures a final segment, and
+     * {@code {name*}} captures all remaining segments.
+     */
+    private static void addToTrie(Node root, Route route, int routeIndex) {
+        var node = root;
+        var segments = splitPath(route.pattern);
+        for (int i = 0; i < segments.length; i++) {
+            var segment = segments[i];
+            var start = segment.indexOf('{');
+            var end = segment.indexOf('}');
+            if (start < 0 || end < start) {
+                node = node.literals.computeIfAbsent(segment, x -> new Node());
+                continue;
+            }
+
+            var last = (i == segments.length - 1);
+            var prefix = segment.substring(0, start);
+            var suffix = segment.substring(end + 1);
+            var name = segment.substring(start + 1, end);
+            if (name.endsWith("*") || name.endsWith("?")) {
+                if (!last || !prefix.isEmpty() || !suffix.isEmpty()) {
+                    throw new IllegalStateException("Unsupported route pattern: " + route.pattern);
+                }
+                route.params.add(name.substring(0, name.length() - 1));
+                if (name.endsWith("*")) {
+                    node.greedyRoutes.add(routeIndex);
+                    return;
+                }
+                // Matches with or without the final segment
+                node.routes.add(routeIndex);
+            } else {
+                route.params.add(name);
+            }
+
+            ParamEdge edge = null;
+            for (var candidate : node.params) {
+                if (candidate.prefix.equals(prefix) && candidate.suffix.equals(suffix)) {
+                    edge = candidate;
+                }
+            }
+            if (edge == null) {
+                edge = new ParamEdge(prefix, suffix);
+                node.params.add(edge);
+                // Try the most specific segments first
+                node.params.sort(Comparator.comparingInt((ParamEdge e) -> e.prefix.length() + e.suffix.length())
+                        .reversed());
+            }
+            node = edge.target;
+        }
+        node.routes.add(routeIndex);
+    }
+
+    private static String[] splitPath(String path) {
+        var relative = path.startsWith("/") ? path.substring(1) : path;
+        return relative.isEmpty() ? new String[0] : relative.split("/", -1);
+    }
+
+    /**
+     * Numbers nodes in depth-first order, so that output is stable.
+     */
+    private static void numberNodes(Node node, List<Node> nodes) {
+        node.id = nodes.size();
+        nodes.add(node);
+        for (var child : node.literals.values()) {
+            numberNodes(child, nodes);
+        }
+        for (var edge : node.params) {
+            numberNodes(edge.target, nodes);
+        }
+    }
+
+    private static File.Builder generateSource(FileDescriptorProto file, String outerClassname, List<Route> routes,
+            List<Node> nodes) {
+        var javaPackage = file.getOptions().getJavaPackage();
+        var javaName = outerClassname + "Routes";
+
+        var jsource = new SourceBuilder(javaName);
+        jsource.setSource(file.getName());
+        jsource.setJavadoc("HTTP routes of the services in " + file.getName() + ".");
+        jsource.setPackage(javaPackage);
+        var className = ServiceGenerator.class.getName();
+        // No date, so that unchanged sources produce identical output
+        jsource.addAnnotation("@javax.annotation.processing.Generated(\"" + className + "\")");
+        jsource.addImport("java.util.Arrays");
+        jsource.addImport("java.util.Map");
+        jsource.addImport("com.google.protobuf.Descriptors.MethodDescriptor");
+
+        var maxParams = routes.stream().mapToInt(route -> route.params.size()).max().orElse(0);
+        jsource.addConstant("int", "MAX_PARAMS", "" + maxParams);
+        jsource.addConstant("String[]", "VERBS", array("String[]", routes, route -> quote(route.verb)));
+        jsource.addConstant("String[]", "PATTERNS", array("String[]", routes, route -> quote(route.pattern)));
+        jsource.addConstant("String[]", "BODIES", array("String[]", routes, route -> quote(route.body)));
+        jsource.addConstant("String[][]", "PARAMS", array("String[][]", routes,
+                route -> stringArray(route.params, x -> x)));
+        jsource.addConstant("MethodDescriptor[]", "METHODS", array("MethodDescriptor[]", routes,
+                route -> "Abstract" + route.serviceName + ".METHOD_DESCRIPTORS[" + route.methodIndex + "]"));
+
+        jsource.addConstant("String[][]", "NODE_LITERALS", array("String[][]", nodes,
+                node -> stringArray(new ArrayList<>(node.literals.keySet()), x -> x)));
+        jsource.addConstant("int[][]", "NODE_LITERAL_TARGETS", array("int[][]", nodes,
+                node -> intArray(node.literals.values().stream().map(child -> child.id).collect(Collectors.toList()))));
+        jsource.addConstant("String[][]", "NODE_PARAM_PREFIXES", array("String[][]", nodes,
+                node -> stringArray(node.params, edge -> edge.prefix)));
+        jsource.addConstant("String[][]", "NODE_PARAM_SUFFIXES", array("String[][]", nodes,
+                node -> stringArray(node.params, edge -> edge.suffix)));
+        jsource.addConstant("int[][]", "NODE_PARAM_TARGETS", array("int[][]", nodes,
+                node -> intArray(node.params.stream().map(edge -> edge.target.id).collect(Collectors.toList()))));
+        jsource.addConstant("int[][]", "NODE_ROUTES", array("int[][]", nodes, node -> intArray(node.routes)));
+        jsource.addConstant("int[][]", "NODE_GREEDY_ROUTES", array("int[][]", nodes,
+                node -> intArray(node.greedyRoutes)));
+
+        var msource = jsource.addMethod("getRouteCount");
+        msource.setStatic(true);
+        msource.setReturn("int");
+        msource.body().append("return PATTERNS.length;\n");
+
+        msource = jsource.addMethod("getMethod");
+        msource.setJavadoc("Returns the method of a route.");
+        msource.setStatic(true);
+        msource.setReturn("MethodDescriptor");
+        msource.addArg("int", "route");
+        msource.body().append("return METHODS[route];\n");
+
+        msource = jsource.addMethod("getVerb");
+        msource.setJavadoc("Returns the HTTP method of a route, in upper case.");
+        msource.setStatic(true);
+        msource.setReturn("String");
+        msource.addArg("int", "route");
+        msource.body().append("return VERBS[route];\n");
+
+        msource = jsource.addMethod("getPattern");
+        msource.setStatic(true);
+        msource.setReturn("String");
+        msource.addArg("int", "route");
+        msource.body().append("return PATTERNS[route];\n");
+
+        msource = jsource.addMethod("getBody");
+        msource.setJavadoc("Returns the request field that is set from the HTTP body, or null if none.");
+        msource.setStatic(true);
+        msource.setReturn("String");
+        msource.addArg("int", "route");
+        msource.body().append("return BODIES[route];\n");
+
+        msource = jsource.addMethod("match");
+        msource.setJavadoc("Matches a request path against the routes of this file.\n"
+                + "\n"
+                + "@param verb\n"
+                + "           the HTTP method in upper case, or null to match any method.\n"
+                + "@param path\n"
+                + "           the request path, without query string. Parameter values are not decoded.\n"
+                + "@param routeParams\n"
+                + "           receives the values of path parameters of the matched route.\n"
+                + "@return the index of the matched route, or -1 if no route matches.");
+        msource.setStatic(true);
+        msource.setReturn("int");
+        msource.addArg("String", "verb");
+        msource.addArg("String", "path");
+        msource.addArg("Map<String, String>", "routeParams");
+        var body = msource.body();
+        body.append("String relative = path.startsWith(\"/\") ? path.substring(1) : path;\n");
+        body.append("String[] segments = relative.isEmpty() ? new String[0] : relative.split(\"/\", -1);\n");
+        body.append("String[] values = new String[MAX_PARAMS];\n");
+        body.append("int route = matchNode(0, segments, 0, verb, values, 0);\n");
+        body.append("if (route >= 0) {\n");
+        body.append("    String[] names = PARAMS[route];\n");
+        body.append("    for (int i = 0; i < names.length; i++) {\n");
+        body.append("        if (values[i] != null) {\n");
+        body.append("            routeParams.put(names[i], values[i]);\n");
+        body.append("        }\n");
+        body.append("    }\n");
+        body.append("}\n");
+        body.append("return route;\n");
+
+        msource = jsource.addMethod("matchNode");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.setReturn("int");
+        msource.addArg("int", "node");
+        msource.addArg("String[]", "segments");
+        msource.addArg("int", "index");
+        msource.addArg("String", "verb");
+        msource.addArg("String[]", "values");
+        msource.addArg("int", "valueCount");
+        body = msource.body();
+        body.append("if (index == segments.length) {\n");
+        body.append("    for (int route : NODE_ROUTES[node]) {\n");
+        body.append("        if (verb == null || VERBS[route].equals(verb)) {\n");
+        body.append("            Arrays.fill(values, valueCount, values.length, null);\n");
+        body.append("            return route;\n");
+        body.append("        }\n");
+        body.append("    }\n");
+        body.append("    return -1;\n");
+        body.append("}\n");
+        body.append("String segment = segments[index];\n");
+        body.append("int literal = Arrays.binarySearch(NODE_LITERALS[node], segment);\n");
+        body.append("if (literal >= 0) {\n");
+        body.append("    int route = matchNode(NODE_LITERAL_TARGETS[node][literal], segments, index + 1, verb, values,\n");
+        body.append("            valueCount);\n");
+        body.append("    if (route >= 0) {\n");
+        body.append("        return route;\n");
+        body.append("    }\n");
+        body.append("}\n");
+        body.append("for (int i = 0; i < NODE_PARAM_TARGETS[node].length; i++) {\n");
+        body.append("    String prefix = NODE_PARAM_PREFIXES[node][i];\n");
+        body.append("    String suffix = NODE_PARAM_SUFFIXES[node][i];\n");
+        body.append("    if (segment.length() > prefix.length() + suffix.length() && segment.startsWith(prefix)\n");
+        body.append("            && segment.endsWith(suffix)) {\n");
+        body.append("        values[valueCount] = segment.substring(prefix.length(), segment.length() - suffix.length());\n");
+        body.append("        int route = matchNode(NODE_PARAM_TARGETS[node][i], segments, index + 1, verb, values,\n");
+        body.append("                valueCount + 1);\n");
+        body.append("        if (route >= 0) {\n");
+        body.append("            return route;\n");
+        body.append("        }\n");
+        body.append("    }\n");
+        body.append("}\n");
+        body.append("for (int route : NODE_GREEDY_ROUTES[node]) {\n");
+        body.append("    if (verb == null || VERBS[route].equals(verb)) {\n");
+        body.append("        values[valueCount] = String.join(\"/\", Arrays.asList(segments).subList(index, segments.length));\n");
+        body.append("        Arrays.fill(values, valueCount + 1, values.length, null);\n");
+        body.append("        return route;\n");
+        body.append("    }\n");
+        body.append("}\n");
+        body.append("return -1;\n");
+
+        var filename = javaPackage.replace('.', '/') + "/" + javaName + ".java";
+        return jsource.toFile(filename);
+    }
+
+    private static <T> String stringArray(List<T> items, Function<T, String> mapper) {
+        return inlineArray(items.stream().map(item -> quote(mapper.apply(item))).collect(Collectors.toList()));
+    }
+
+    private static String intArray(List<Integer> items) {
+        return inlineArray(items.stream().map(String::valueOf).collect(Collectors.toList()));
+    }
+
+    private static String inlineArray(List<String> elements) {
+        return elements.isEmpty() ? "{}" : "{ " + String.join(", ", elements) + " }";
+    }
+
+    /**
+     * Formats an array initializer with one element per line.
+     */
+    private static <T> String array(String type, List<T> items, Function<T, String> mapper) {
+        if (items.isEmpty()) {
+            return "new " + type + " {}";
+        }
+        var elements = new ArrayList<String>();
+        for (var item : items) {
+            elements.add(mapper.apply(item));
+        }
+        return "new " + type + " {\n            " + String.join(",\n            ", elements) + " }";
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
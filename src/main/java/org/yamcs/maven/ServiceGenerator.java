@@ -2,15 +2,23 @@ package org.yamcs.maven;
 
 import java.beans.Introspector;
 import java.io.IOException;
-import java.time.Instant;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.DescriptorProtos.DescriptorProto;
 import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
 import com.google.protobuf.DescriptorProtos.MethodDescriptorProto;
@@ -21,14 +29,91 @@ import com.google.protobuf.compiler.PluginProtos.CodeGeneratorResponse.File;
 
 public class ServiceGenerator {
 
-    private static Map<String, DescriptorProto> messageTypes = new HashMap<>();
-    private static Map<DescriptorProto, FileDescriptorProto> fileForMessage = new HashMap<>();
-    private static Map<String, String> javaPackages = new HashMap<>();
+    /**
+     * Option that makes generated services record call metrics.
+     */
+    public static final String OPTION_METRICS = "metrics";
+
+    /**
+     * Option that adds batched variants of unary calls to generated clients.
+     */
+    public static final String OPTION_BATCH = "batch";
+
+    /**
+     * Option that generates JSON codecs for the messages of each file.
+     */
+    public static final String OPTION_JSON = "json";
+
+    /**
+     * Option that generates HTTP route tables for the methods of each file.
+     */
+    public static final String OPTION_ROUTES = "routes";
+
+    private static final Set<String> KNOWN_OPTIONS = Set.of(OPTION_METRICS, OPTION_BATCH, OPTION_JSON,
+            OPTION_ROUTES);
+
+    /**
+     * Number of latency buckets recorded per method, with upper bounds of 10
+     * microseconds to 1 second, increasing by a factor of 10. The last bucket
+     * counts slower calls.
+     */
+    private static final int LATENCY_BUCKETS = 7;
+
+    /**
+     * Number of metric values per method: call count, error count, total time and
+     * latency buckets.
+     */
+    private static final int METRICS_STRIDE = 3 + LATENCY_BUCKETS;
+
+    /**
+     * Name of the interface through which the metrics of generated services are
+     * read. It is generated once for each Java package with such services.
+     */
+    private static final String METRICS_INTERFACE = "ServiceMetrics";
+
+    /**
+     * Field presence only matters to JSON codecs, which handle proto3 optional.
+     */
+    private static final long SUPPORTED_FEATURES = CodeGeneratorResponse.Feature.FEATURE_PROTO3_OPTIONAL_VALUE;
+
+    private final CodeGeneratorRequest request;
+    private final Set<String> options = new HashSet<>();
+
+    private final Map<String, DescriptorProto> messageTypes = new HashMap<>();
+    private final Map<DescriptorProto, FileDescriptorProto> fileForMessage = new HashMap<>();
+    private final Map<String, String> javaPackages = new HashMap<>();
+
+    private final Map<ServiceDescriptorProto, String> serviceComments = new HashMap<>();
+    private final Map<MethodDescriptorProto, String> methodComments = new HashMap<>();
+
+    /**
+     * Indexes the files of a request. An instance holds the state of a single
+     * request, so that requests can be processed concurrently.
+     */
+    private ServiceGenerator(CodeGeneratorRequest request) {
+        this.request = request;
+        for (var option : request.getParameter().split(",")) {
+            if (!option.trim().isEmpty()) {
+                options.add(option.trim());
+            }
+        }
 
-    private static Map<ServiceDescriptorProto, String> serviceComments = new HashMap<>();
-    private static Map<MethodDescriptorProto, String> methodComments = new HashMap<>();
+        // Index all messages by fully-qualified protobuf name
+        for (var file : request.getProtoFileList()) {
+            scanComments(file);
 
-    private static void scanComments(FileDescriptorProto file) {
+            var javaPackage = file.getOptions().getJavaPackage();
+            javaPackages.put(file.getName(), javaPackage);
+
+            for (var messageType : file.getMessageTypeList()) {
+                var qname = file.getPackage() + "." + messageType.getName();
+                messageTypes.put(qname, messageType);
+                fileForMessage.put(messageType, file);
+            }
+        }
+    }
+
+    private void scanComments(FileDescriptorProto file) {
         var services = file.getServiceList();
 
         for (var location : file.getSourceCodeInfo().getLocationList()) {
@@ -50,51 +135,178 @@ public class ServiceGenerator {
 
     public static void main(String[] args) throws IOException {
         var request = CodeGeneratorRequest.parseFrom(System.in);
-        var responseb = CodeGeneratorResponse.newBuilder();
 
-        // Index all messages by fully-qualified protobuf name
-        for (var file : request.getProtoFileList()) {
-            scanComments(file);
+        // Files are written as soon as they are available, rather than after
+        // assembling the whole response
+        var output = CodedOutputStream.newInstance(System.out);
+        output.writeUInt64(CodeGeneratorResponse.SUPPORTED_FEATURES_FIELD_NUMBER, SUPPORTED_FEATURES);
+        var pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            var error = new ServiceGenerator(request).generate(pool,
+                    file -> output.writeMessage(CodeGeneratorResponse.FILE_FIELD_NUMBER, file));
+            if (error != null) {
+                // protoc ignores any files when the response has an error
+                output.writeString(CodeGeneratorResponse.ERROR_FIELD_NUMBER, error);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        output.flush();
+    }
 
-            var javaPackage = file.getOptions().getJavaPackage();
-            javaPackages.put(file.getName(), javaPackage);
+    /**
+     * Generates service sources for the files of a request. This is used when the
+     * generator runs within the same JVM as the caller, rather than as a protoc
+     * plugin.
+     */
+    public static CodeGeneratorResponse generate(CodeGeneratorRequest request) {
+        return generate(request, Runtime.getRuntime().availableProcessors());
+    }
 
-            for (var messageType : file.getMessageTypeList()) {
-                var qname = file.getPackage() + "." + messageType.getName();
-                messageTypes.put(qname, messageType);
-                fileForMessage.put(messageType, file);
+    /**
+     * Generates service sources for the files of a request, using at most the
+     * given number of threads.
+     *
+     * @param parallelism
+     *                    the number of threads of the pool that is created for, and
+     *                    shut down after, this call.
+     */
+    public static CodeGeneratorResponse generate(CodeGeneratorRequest request, int parallelism) {
+        var responseb = CodeGeneratorResponse.newBuilder();
+        responseb.setSupportedFeatures(SUPPORTED_FEATURES);
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            var error = new ServiceGenerator(request).generate(pool, file -> responseb.addFile(file));
+            if (error != null) {
+                return CodeGeneratorResponse.newBuilder()
+                        .setSupportedFeatures(SUPPORTED_FEATURES)
+                        .setError(error)
+                        .build();
             }
+        } catch (IOException e) {
+            // Not expected, the response is in memory
+            throw new UncheckedIOException(e);
+        } finally {
+            pool.shutdownNow();
         }
+        return responseb.build();
+    }
 
+    /**
+     * Generates all files of the request, and passes them to the consumer in a
+     * deterministic order.
+     * <p>
+     * Each source is generated by a separate task of the given pool, which is
+     * owned by the caller. The results are consumed in the order of the request,
+     * so that the output does not depend on scheduling.
+     *
+     * @return an error message, or {@code null} if generation succeeded.
+     */
+    private String generate(ForkJoinPool pool, FileConsumer consumer) throws IOException {
+        for (var option : options) {
+            if (!KNOWN_OPTIONS.contains(option)) {
+                return "Unknown option: " + option;
+            }
+        }
+        var routeTableGenerator = options.contains(OPTION_ROUTES) ? new RouteTableGenerator(request) : null;
+        var jsonCodecGenerator = options.contains(OPTION_JSON) ? new JsonCodecGenerator(request) : null;
+
+        var tasks = new ArrayList<ForkJoinTask<File.Builder>>();
+        var metricsPackages = new LinkedHashSet<String>();
         for (var file : request.getProtoFileList()) {
             for (int i = 0; i < file.getServiceCount(); i++) {
-                responseb.addFile(generateService(file, i));
-                responseb.addFile(generateServiceClient(file, i));
+                var serviceIndex = i;
+                tasks.add(pool.submit(() -> generateService(file, serviceIndex)));
+                tasks.add(pool.submit(() -> generateServiceClient(file, serviceIndex)));
+            }
+            if (file.getServiceCount() > 0 && options.contains(OPTION_METRICS)) {
+                metricsPackages.add(file.getOptions().getJavaPackage());
+            }
+
+            // Route tables and codecs only for the files being compiled, those
+            // of imports belong to the project that defines them
+            if (!request.getFileToGenerateList().contains(file.getName())) {
+                continue;
+            }
+            if (routeTableGenerator != null) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        return routeTableGenerator.generate(file, getOuterClassname(file));
+                    } catch (IllegalStateException e) {
+                        throw new IllegalStateException(file.getName() + ": " + e.getMessage(), e);
+                    }
+                }));
+            }
+            if (jsonCodecGenerator != null) {
+                tasks.add(pool.submit(() -> jsonCodecGenerator.generate(file)));
+            }
+        }
+        for (var javaPackage : metricsPackages) {
+            tasks.add(pool.submit(() -> generateMetricsInterface(javaPackage)));
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            File.Builder generatedFile;
+            try {
+                generatedFile = tasks.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(tasks, i);
+                return "Interrupted";
+            } catch (ExecutionException e) {
+                cancel(tasks, i);
+                var cause = e.getCause();
+                if (cause instanceof IllegalStateException) {
+                    return cause.getMessage();
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw (Error) cause;
+                }
+            }
+            if (generatedFile != null) {
+                consumer.accept(generatedFile.build());
             }
         }
+        return null;
+    }
 
-        responseb.build().writeTo(System.out);
+    private static void cancel(List<ForkJoinTask<File.Builder>> tasks, int fromIndex) {
+        for (int i = fromIndex; i < tasks.size(); i++) {
+            tasks.get(i).cancel(false);
+        }
     }
 
-    private static File.Builder generateService(FileDescriptorProto file, int serviceIndex) {
+    private File.Builder generateService(FileDescriptorProto file, int serviceIndex) {
         var service = file.getService(serviceIndex);
         var javaPackage = file.getOptions().getJavaPackage();
         var javaName = "Abstract" + service.getName();
 
         var jsource = new SourceBuilder(javaName + "<T>");
+        jsource.setSource(file.getName());
         jsource.setAbstract(true);
         jsource.setJavadoc(serviceComments.get(service));
         jsource.setPackage(javaPackage);
-        jsource.setImplements("Api<T>");
+        var metrics = options.contains(OPTION_METRICS);
+        jsource.setImplements(metrics ? "Api<T>, " + METRICS_INTERFACE : "Api<T>");
         var className = ServiceGenerator.class.getName();
-        jsource.addAnnotation("@javax.annotation.processing.Generated(value = \"" + className + "\", date = \""
-                + Instant.now() + "\")");
+        // No date, so that unchanged sources produce identical output
+        jsource.addAnnotation("@javax.annotation.processing.Generated(\"" + className + "\")");
         jsource.addAnnotation("@SuppressWarnings(\"unchecked\")");
+        jsource.addImport("java.io.IOException");
+        jsource.addImport("com.google.protobuf.CodedInputStream");
         jsource.addImport("com.google.protobuf.Message");
         jsource.addImport("com.google.protobuf.Descriptors.MethodDescriptor");
         jsource.addImport("com.google.protobuf.Descriptors.ServiceDescriptor");
         jsource.addImport("org.yamcs.api.Api");
         jsource.addImport("org.yamcs.api.Observer");
+        var streamingCount = (int) service.getMethodList().stream().filter(m -> m.getClientStreaming()).count();
+
+        // Resolved once, rather than on every call
+        jsource.addConstant("ServiceDescriptor", "SERVICE_DESCRIPTOR",
+                getOuterClassname(file) + ".getDescriptor().getServices().get(" + serviceIndex + ")");
+        jsource.addConstant("MethodDescriptor[]", "METHOD_DESCRIPTORS",
+                "SERVICE_DESCRIPTOR.getMethods().toArray(new MethodDescriptor[0])");
 
         for (var method : service.getMethodList()) {
             var javaMethodName = Introspector.decapitalize(method.getName());
@@ -130,8 +342,7 @@ public class ServiceGenerator {
         msource.setReturn("ServiceDescriptor");
         msource.addAnnotation("@Override");
         msource.setFinal(true);
-        msource.body().append("return ").append(getOuterClassname(file))
-                .append(".getDescriptor().getServices().get(").append(serviceIndex).append(");\n");
+        msource.body().append("return SERVICE_DESCRIPTOR;\n");
 
         // Implement "Message getRequestPrototype(MethodDescriptor method);"
         msource = jsource.addMethod("getRequestPrototype");
@@ -139,7 +350,7 @@ public class ServiceGenerator {
         msource.addAnnotation("@Override");
         msource.setFinal(true);
         msource.addArg("MethodDescriptor", "method");
-        msource.body().append("if (method.getService() != getDescriptorForType()) {\n");
+        msource.body().append("if (method.getService() != SERVICE_DESCRIPTOR) {\n");
         msource.body().append("    throw new IllegalArgumentException(\"Method not contained by this service.\");\n");
         msource.body().append("}\n");
         msource.body().append("switch (method.getIndex()) {\n");
@@ -153,13 +364,36 @@ public class ServiceGenerator {
         msource.body().append("    throw new IllegalStateException();\n");
         msource.body().append("}\n");
 
+        // Parses with the static parser of each request type, which avoids going
+        // through a builder of the prototype
+        msource = jsource.addMethod("parseRequest");
+        msource.setJavadoc("Parses the request of a method of this service.");
+        msource.setReturn("Message");
+        msource.setFinal(true);
+        msource.addArg("MethodDescriptor", "method");
+        msource.addArg("CodedInputStream", "input");
+        msource.addThrows("IOException");
+        msource.body().append("if (method.getService() != SERVICE_DESCRIPTOR) {\n");
+        msource.body().append("    throw new IllegalArgumentException(\"Method not contained by this service.\");\n");
+        msource.body().append("}\n");
+        msource.body().append("switch (method.getIndex()) {\n");
+        for (int i = 0; i < service.getMethodCount(); i++) {
+            var method = service.getMethod(i);
+            var inputType = messageTypes.get(method.getInputType().substring(1));
+            msource.body().append("case ").append(i).append(":\n");
+            msource.body().append("    return ").append(inputType.getName()).append(".parser().parseFrom(input);\n");
+        }
+        msource.body().append("default:\n");
+        msource.body().append("    throw new IllegalStateException();\n");
+        msource.body().append("}\n");
+
         // Implement "Message getResponsePrototype(MethodDescriptor method);"
         msource = jsource.addMethod("getResponsePrototype");
         msource.setReturn("Message");
         msource.setFinal(true);
         msource.addAnnotation("@Override");
         msource.addArg("MethodDescriptor", "method");
-        msource.body().append("if (method.getService() != getDescriptorForType()) {\n");
+        msource.body().append("if (method.getService() != SERVICE_DESCRIPTOR) {\n");
         msource.body().append("    throw new IllegalArgumentException(\"Method not contained by this service.\");\n");
         msource.body().append("}\n");
         msource.body().append("switch (method.getIndex()) {\n");
@@ -182,9 +416,11 @@ public class ServiceGenerator {
         msource.addArg("T", "ctx");
         msource.addArg("Message", "request");
         msource.addArg("Observer<Message>", "future");
-        msource.body().append("if (method.getService() != getDescriptorForType()) {\n");
+        msource.body().append("if (method.getService() != SERVICE_DESCRIPTOR) {\n");
         msource.body().append("    throw new IllegalArgumentException(\"Method not contained by this service.\");\n");
         msource.body().append("}\n");
+        var timed = metrics && streamingCount < service.getMethodCount();
+        var dispatchStart = msource.body().length();
         msource.body().append("switch (method.getIndex()) {\n");
         for (int i = 0; i < service.getMethodCount(); i++) {
             var method = service.getMethod(i);
@@ -196,12 +432,15 @@ public class ServiceGenerator {
                 callArgs += ", (Observer<" + outputType.getName() + ">)(Object) future";
                 msource.body().append("case ").append(i).append(":\n");
                 msource.body().append("    ").append(javaMethodName).append("(").append(callArgs).append(");\n");
-                msource.body().append("    return;\n");
+                msource.body().append(timed ? "    break;\n" : "    return;\n");
             }
         }
         msource.body().append("default:\n");
         msource.body().append("    throw new IllegalStateException();\n");
         msource.body().append("}\n");
+        if (timed) {
+            wrapWithMetrics(msource.body(), dispatchStart);
+        }
 
         // Implement "Observer<Message> callMethod(MethodDescriptor method,
         // Observer<Message> observer)"
@@ -212,9 +451,14 @@ public class ServiceGenerator {
         msource.addArg("MethodDescriptor", "method");
         msource.addArg("T", "ctx");
         msource.addArg("Observer<Message>", "future");
-        msource.body().append("if (method.getService() != getDescriptorForType()) {\n");
+        msource.body().append("if (method.getService() != SERVICE_DESCRIPTOR) {\n");
         msource.body().append("    throw new IllegalArgumentException(\"Method not contained by this service.\");\n");
         msource.body().append("}\n");
+        timed = metrics && streamingCount > 0;
+        if (timed) {
+            msource.body().append("Observer<Message> result;\n");
+        }
+        dispatchStart = msource.body().length();
         msource.body().append("switch (method.getIndex()) {\n");
         for (int i = 0; i < service.getMethodCount(); i++) {
             var method = service.getMethod(i);
@@ -223,32 +467,218 @@ public class ServiceGenerator {
                 var outputType = messageTypes.get(method.getOutputType().substring(1));
                 var callArgs = "ctx, (Observer<" + outputType.getName() + ">)(Object) future";
                 msource.body().append("case ").append(i).append(":\n");
-                msource.body().append("    return (Observer<Message>)(Object) ").append(javaMethodName).append("(")
+                msource.body().append(timed ? "    result = " : "    return ");
+                msource.body().append("(Observer<Message>)(Object) ").append(javaMethodName).append("(")
                         .append(callArgs).append(");\n");
+                if (timed) {
+                    msource.body().append("    break;\n");
+                }
             }
         }
         msource.body().append("default:\n");
         msource.body().append("    throw new IllegalStateException();\n");
         msource.body().append("}\n");
+        if (timed) {
+            wrapWithMetrics(msource.body(), dispatchStart);
+            msource.body().append("return result;\n");
+        }
+        if (metrics) {
+            addMetricsMethods(jsource, service);
+        }
 
         var filename = javaPackage.replace('.', '/') + "/" + javaName + ".java";
-        return File.newBuilder().setName(filename).setContent(jsource.toString());
+        return jsource.toFile(filename);
+    }
+
+    /**
+     * Wraps the dispatch code at the end of a method body, so that calls are timed
+     * if metrics are enabled. The metrics array is read once, so that the disabled
+     * case costs a single null check.
+     */
+    private static void wrapWithMetrics(StringBuilder body, int dispatchStart) {
+        var dispatch = body.substring(dispatchStart);
+        body.setLength(dispatchStart);
+        body.append("AtomicLongArray metrics = callMetrics;\n");
+        body.append("long start = metrics != null ? System.nanoTime() : 0L;\n");
+        body.append("boolean success = false;\n");
+        body.append("try {\n");
+        for (var line : dispatch.split("\n")) {
+            body.append("    ").append(line).append("\n");
+        }
+        body.append("    success = true;\n");
+        body.append("} finally {\n");
+        body.append("    if (metrics != null) {\n");
+        body.append("        recordCall(metrics, method.getIndex(), System.nanoTime() - start, success);\n");
+        body.append("    }\n");
+        body.append("}\n");
+    }
+
+    /**
+     * Adds the state for call metrics, and implements the metrics interface. All
+     * values of a service are kept in a single array that is allocated when
+     * metrics are enabled, so that recording a call does not allocate.
+     */
+    private static void addMetricsMethods(SourceBuilder jsource, ServiceDescriptorProto service) {
+        jsource.addImport("java.util.concurrent.atomic.AtomicLongArray");
+        jsource.addConstant("int", "METRICS_STRIDE", "" + METRICS_STRIDE);
+        jsource.addVolatileField("AtomicLongArray", "callMetrics");
+
+        var msource = jsource.addMethod("setMetricsEnabled");
+        msource.addAnnotation("@Override");
+        msource.setFinal(true);
+        msource.addArg("boolean", "enabled");
+        msource.body().append("callMetrics = enabled\n");
+        msource.body().append("        ? new AtomicLongArray(").append(service.getMethodCount())
+                .append(" * METRICS_STRIDE)\n");
+        msource.body().append("        : null;\n");
+
+        msource = jsource.addMethod("isMetricsEnabled");
+        msource.setReturn("boolean");
+        msource.addAnnotation("@Override");
+        msource.setFinal(true);
+        msource.body().append("return callMetrics != null;\n");
+
+        msource = jsource.addMethod("getCallCount");
+        msource.setReturn("long");
+        msource.addAnnotation("@Override");
+        msource.setFinal(true);
+        msource.addArg("MethodDescriptor", "method");
+        msource.body().append("return getMetric(method, 0);\n");
+
+        msource = jsource.addMethod("getErrorCount");
+        msource.setReturn("long");
+        msource.addAnnotation("@Override");
+        msource.setFinal(true);
+        msource.addArg("MethodDescriptor", "method");
+        msource.body().append("return getMetric(method, 1);\n");
+
+        msource = jsource.addMethod("getTotalNanos");
+        msource.setReturn("long");
+        msource.addAnnotation("@Override");
+        msource.setFinal(true);
+        msource.addArg("MethodDescriptor", "method");
+        msource.body().append("return getMetric(method, 2);\n");
+
+        msource = jsource.addMethod("getLatencyHistogram");
+        msource.setReturn("long[]");
+        msource.addAnnotation("@Override");
+        msource.setFinal(true);
+        msource.addArg("MethodDescriptor", "method");
+        msource.body().append("long[] histogram = new long[").append(LATENCY_BUCKETS).append("];\n");
+        msource.body().append("for (int i = 0; i < histogram.length; i++) {\n");
+        msource.body().append("    histogram[i] = getMetric(method, 3 + i);\n");
+        msource.body().append("}\n");
+        msource.body().append("return histogram;\n");
+
+        msource = jsource.addMethod("getMetric");
+        msource.setPrivate(true);
+        msource.setReturn("long");
+        msource.addArg("MethodDescriptor", "method");
+        msource.addArg("int", "offset");
+        msource.body().append("if (method.getService() != SERVICE_DESCRIPTOR) {\n");
+        msource.body().append("    throw new IllegalArgumentException(\"Method not contained by this service.\");\n");
+        msource.body().append("}\n");
+        msource.body().append("AtomicLongArray metrics = callMetrics;\n");
+        msource.body().append("return metrics != null ? metrics.get(method.getIndex() * METRICS_STRIDE + offset) : 0;\n");
+
+        msource = jsource.addMethod("recordCall");
+        msource.setPrivate(true);
+        msource.setStatic(true);
+        msource.addArg("AtomicLongArray", "metrics");
+        msource.addArg("int", "methodIndex");
+        msource.addArg("long", "nanos");
+        msource.addArg("boolean", "success");
+        msource.body().append("int offset = methodIndex * METRICS_STRIDE;\n");
+        msource.body().append("metrics.incrementAndGet(offset);\n");
+        msource.body().append("if (!success) {\n");
+        msource.body().append("    metrics.incrementAndGet(offset + 1);\n");
+        msource.body().append("}\n");
+        msource.body().append("metrics.addAndGet(offset + 2, nanos);\n");
+        msource.body().append("int bucket = 0;\n");
+        msource.body().append("for (long bound = 10_000L; bucket < ").append(LATENCY_BUCKETS - 1)
+                .append(" && nanos >= bound; bound *= 10) {\n");
+        msource.body().append("    bucket++;\n");
+        msource.body().append("}\n");
+        msource.body().append("metrics.incrementAndGet(offset + 3 + bucket);\n");
     }
 
-    private static File.Builder generateServiceClient(FileDescriptorProto file, int serviceIndex) {
+    /**
+     * Generates the interface through which the metrics of the services in a
+     * package are read, so that a collector does not need code per service.
+     */
+    private static File.Builder generateMetricsInterface(String javaPackage) {
+        var jsource = new SourceBuilder(METRICS_INTERFACE);
+        jsource.setInterface(true);
+        jsource.setJavadoc("Call metrics of a generated service. Metrics are recorded per method, once\n"
+                + "enabled, and cover the time spent dispatching a call to its implementation.\n"
+                + "Calls that complete their observer asynchronously are not timed until\n"
+                + "completion.");
+        jsource.setPackage(javaPackage);
+        var className = ServiceGenerator.class.getName();
+        jsource.addAnnotation("@javax.annotation.processing.Generated(\"" + className + "\")");
+        jsource.addImport("com.google.protobuf.Descriptors.MethodDescriptor");
+        jsource.addImport("com.google.protobuf.Descriptors.ServiceDescriptor");
+
+        var msource = jsource.addMethod("getDescriptorForType");
+        msource.setJavadoc("Returns the service, whose methods are the keys of its metrics.");
+        msource.setReturn("ServiceDescriptor");
+        msource.setAbstract(true);
+
+        msource = jsource.addMethod("setMetricsEnabled");
+        msource.setJavadoc("Enables or disables recording of call metrics. Enabling resets all values.");
+        msource.addArg("boolean", "enabled");
+        msource.setAbstract(true);
+
+        msource = jsource.addMethod("isMetricsEnabled");
+        msource.setJavadoc("Returns whether call metrics are being recorded.");
+        msource.setReturn("boolean");
+        msource.setAbstract(true);
+
+        msource = jsource.addMethod("getCallCount");
+        msource.setJavadoc("Returns the number of calls of a method since metrics were enabled.");
+        msource.setReturn("long");
+        msource.addArg("MethodDescriptor", "method");
+        msource.setAbstract(true);
+
+        msource = jsource.addMethod("getErrorCount");
+        msource.setJavadoc("Returns the number of calls of a method that threw an exception.");
+        msource.setReturn("long");
+        msource.addArg("MethodDescriptor", "method");
+        msource.setAbstract(true);
+
+        msource = jsource.addMethod("getTotalNanos");
+        msource.setJavadoc("Returns the total time spent in calls of a method, in nanoseconds.");
+        msource.setReturn("long");
+        msource.addArg("MethodDescriptor", "method");
+        msource.setAbstract(true);
+
+        msource = jsource.addMethod("getLatencyHistogram");
+        msource.setJavadoc("Returns call counts of a method by latency. Bucket i counts calls that took\n"
+                + "less than 10^(i + 4) nanoseconds, from 10 microseconds up to 1 second. The\n"
+                + "last bucket counts slower calls.");
+        msource.setReturn("long[]");
+        msource.addArg("MethodDescriptor", "method");
+        msource.setAbstract(true);
+
+        var filename = javaPackage.replace('.', '/') + "/" + METRICS_INTERFACE + ".java";
+        return jsource.toFile(filename);
+    }
+
+    private File.Builder generateServiceClient(FileDescriptorProto file, int serviceIndex) {
         var service = file.getService(serviceIndex);
         var javaPackage = file.getOptions().getJavaPackage();
         var javaName = service.getName() + "Client";
 
         var jsource = new SourceBuilder(javaName);
+        jsource.setSource(file.getName());
         jsource.setJavadoc(serviceComments.get(service));
         jsource.setPackage(javaPackage);
         jsource.setExtends("Abstract" + service.getName() + "<Void>");
         jsource.addImport("org.yamcs.api.MethodHandler");
         jsource.addImport("org.yamcs.api.Observer");
         var className = ServiceGenerator.class.getName();
-        jsource.addAnnotation("@javax.annotation.processing.Generated(value = \"" + className + "\", date = \""
-                + Instant.now() + "\")");
+        // No date, so that unchanged sources produce identical output
+        jsource.addAnnotation("@javax.annotation.processing.Generated(\"" + className + "\")");
 
         jsource.addField("MethodHandler", "handler");
 
@@ -284,7 +714,7 @@ public class ServiceGenerator {
                 msource.addArg("Observer<" + outputType.getName() + ">", "observer");
                 msource.body()
                         .append("return (Observer<" + inputType.getName() + ">)(Object) handler.streamingCall(\n");
-                msource.body().append("    getDescriptorForType().getMethods().get(").append(i).append("),\n");
+                msource.body().append("    METHOD_DESCRIPTORS[").append(i).append("],\n");
                 msource.body().append("    ").append(inputType.getName()).append(".getDefaultInstance(),\n");
                 msource.body().append("    ").append(outputType.getName()).append(".getDefaultInstance(),\n");
                 msource.body().append("    observer);");
@@ -294,18 +724,120 @@ public class ServiceGenerator {
                 msource.addArg("Observer<" + outputType.getName() + ">", "observer");
 
                 msource.body().append("handler.call(\n");
-                msource.body().append("    getDescriptorForType().getMethods().get(").append(i).append("),\n");
+                msource.body().append("    METHOD_DESCRIPTORS[").append(i).append("],\n");
                 msource.body().append("    request,\n");
                 msource.body().append("    ").append(outputType.getName()).append(".getDefaultInstance(),\n");
                 msource.body().append("    observer);");
             }
         }
 
+        if (options.contains(OPTION_BATCH)) {
+            var batchCount = 0;
+            for (int i = 0; i < service.getMethodCount(); i++) {
+                var method = service.getMethod(i);
+                if (method.getClientStreaming() || method.getServerStreaming()) {
+                    continue;
+                }
+                var javaMethodName = Introspector.decapitalize(method.getName());
+                var inputType = messageTypes.get(method.getInputType().substring(1));
+                var outputType = messageTypes.get(method.getOutputType().substring(1));
+
+                var msource = jsource.addMethod(javaMethodName + "Batch");
+                msource.setJavadoc("Calls " + javaMethodName + " for each of the given requests, with at most\n"
+                        + "maxInFlight calls outstanding. Responses are in the order of the requests.");
+                msource.setFinal(true);
+                msource.setReturn("CompletableFuture<List<" + outputType.getName() + ">>");
+                msource.addArg("List<" + inputType.getName() + ">", "requests");
+                msource.addArg("int", "maxInFlight");
+                msource.body().append("return callBatch(METHOD_DESCRIPTORS[").append(i).append("], requests, ")
+                        .append(outputType.getName()).append(".getDefaultInstance(), maxInFlight);\n");
+                batchCount++;
+            }
+            if (batchCount > 0) {
+                addBatchSupport(jsource);
+            }
+        }
+
         var filename = javaPackage.replace('.', '/') + "/" + javaName + ".java";
-        return File.newBuilder().setName(filename).setContent(jsource.toString());
+        return jsource.toFile(filename);
+    }
+
+    /**
+     * Adds the method that pipelines the calls of a batch. A new call is sent
+     * whenever one completes. Sends are drained in a loop rather than recursively,
+     * so that handlers that complete calls synchronously do not grow the stack.
+     */
+    private static void addBatchSupport(SourceBuilder jsource) {
+        jsource.addImport("java.util.Arrays");
+        jsource.addImport("java.util.List");
+        jsource.addImport("java.util.concurrent.CompletableFuture");
+        jsource.addImport("java.util.concurrent.atomic.AtomicInteger");
+        jsource.addImport("com.google.protobuf.Message");
+        jsource.addImport("com.google.protobuf.Descriptors.MethodDescriptor");
+
+        var msource = jsource.addMethod("callBatch");
+        msource.addAnnotation("@SuppressWarnings(\"unchecked\")");
+        msource.setPrivate(true);
+        msource.setTypeParameters("<I extends Message, O extends Message>");
+        msource.setReturn("CompletableFuture<List<O>>");
+        msource.addArg("MethodDescriptor", "method");
+        msource.addArg("List<I>", "requests");
+        msource.addArg("O", "responsePrototype");
+        msource.addArg("int", "maxInFlight");
+        var body = msource.body();
+        body.append("if (maxInFlight < 1) {\n");
+        body.append("    throw new IllegalArgumentException(\"maxInFlight must be at least 1\");\n");
+        body.append("}\n");
+        body.append("int count = requests.size();\n");
+        body.append("Object[] responses = new Object[count];\n");
+        body.append("CompletableFuture<List<O>> result = new CompletableFuture<>();\n");
+        body.append("if (count == 0) {\n");
+        body.append("    result.complete((List<O>)(Object) Arrays.asList(responses));\n");
+        body.append("    return result;\n");
+        body.append("}\n");
+        body.append("AtomicInteger nextIndex = new AtomicInteger();\n");
+        body.append("AtomicInteger remaining = new AtomicInteger(count);\n");
+        body.append("AtomicInteger pendingSends = new AtomicInteger();\n");
+        body.append("Runnable sender = new Runnable() {\n");
+        body.append("    @Override\n");
+        body.append("    public void run() {\n");
+        body.append("        if (pendingSends.getAndIncrement() != 0) {\n");
+        body.append("            return;\n");
+        body.append("        }\n");
+        body.append("        do {\n");
+        body.append("            int index = nextIndex.getAndIncrement();\n");
+        body.append("            if (index < count && !result.isDone()) {\n");
+        body.append("                handler.call(method, requests.get(index), responsePrototype, new Observer<O>() {\n");
+        body.append("                    @Override\n");
+        body.append("                    public void next(O message) {\n");
+        body.append("                        responses[index] = message;\n");
+        body.append("                    }\n");
+        body.append("\n");
+        body.append("                    @Override\n");
+        body.append("                    public void completeExceptionally(Throwable t) {\n");
+        body.append("                        result.completeExceptionally(t);\n");
+        body.append("                    }\n");
+        body.append("\n");
+        body.append("                    @Override\n");
+        body.append("                    public void complete() {\n");
+        body.append("                        if (remaining.decrementAndGet() == 0) {\n");
+        body.append("                            result.complete((List<O>)(Object) Arrays.asList(responses));\n");
+        body.append("                        } else {\n");
+        body.append("                            run();\n");
+        body.append("                        }\n");
+        body.append("                    }\n");
+        body.append("                });\n");
+        body.append("            }\n");
+        body.append("        } while (pendingSends.decrementAndGet() != 0);\n");
+        body.append("    }\n");
+        body.append("};\n");
+        body.append("for (int i = 0; i < Math.min(maxInFlight, count); i++) {\n");
+        body.append("    sender.run();\n");
+        body.append("}\n");
+        body.append("return result;\n");
     }
 
-    private static String getJavaPackage(DescriptorProto messageType) {
+    private String getJavaPackage(DescriptorProto messageType) {
         var file = fileForMessage.get(messageType);
         if (file.getOptions().getJavaMultipleFiles()) {
             return file.getOptions().getJavaPackage();
@@ -324,20 +856,59 @@ public class ServiceGenerator {
         }
     }
 
-    private static String getJavaClassname(DescriptorProto messageType) {
+    /**
+     * Converts a name to camel case the way protoc does for Java class and
+     * accessor names.
+     */
+    static String toCamelCase(String name, boolean capitalizeFirst) {
+        var buf = new StringBuilder();
+        var capitalizeNext = capitalizeFirst;
+        for (int i = 0; i < name.length(); i++) {
+            var c = name.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                buf.append(capitalizeNext ? Character.toUpperCase(c) : c);
+                capitalizeNext = false;
+            } else if (c >= 'A' && c <= 'Z') {
+                buf.append((i == 0 && !capitalizeNext) ? Character.toLowerCase(c) : c);
+                capitalizeNext = false;
+            } else if (c >= '0' && c <= '9') {
+                buf.append(c);
+                capitalizeNext = true;
+            } else {
+                capitalizeNext = true;
+            }
+        }
+        return buf.toString();
+    }
+
+    private String getJavaClassname(DescriptorProto messageType) {
         return getJavaPackage(messageType) + "." + messageType.getName();
     }
 
+    /**
+     * Receives generated files, in the order of the response.
+     */
+    @FunctionalInterface
+    private interface FileConsumer {
+        void accept(File file) throws IOException;
+    }
+
     public static class SourceBuilder {
 
+        private String source;
         private String package_;
         private Set<String> imports = new HashSet<>();
         private List<String> annotations = new ArrayList<>();
         private boolean abstract_;
+        private boolean interface_;
         private String javadoc;
         private String class_;
         private String extends_;
         private String implements_;
+        private List<String> constantTypes = new ArrayList<>();
+        private List<String> constantNames = new ArrayList<>();
+        private List<String> constantValues = new ArrayList<>();
+        private List<String> fieldModifiers = new ArrayList<>();
         private List<String> fieldTypes = new ArrayList<>();
         private List<String> fieldNames = new ArrayList<>();
         private List<ConstructorBuilder> constructors = new ArrayList<>();
@@ -360,6 +931,14 @@ public class ServiceGenerator {
             annotations.add(annotation);
         }
 
+        /**
+         * Sets the name of the proto file that this source is generated from. This is
+         * recorded in a header comment, similar to what protoc does.
+         */
+        public void setSource(String source) {
+            this.source = source;
+        }
+
         public void setPackage(String package_) {
             this.package_ = package_;
         }
@@ -368,6 +947,14 @@ public class ServiceGenerator {
             this.abstract_ = abstract_;
         }
 
+        /**
+         * Generates an interface rather than a class. Methods of an interface are
+         * expected to be abstract.
+         */
+        public void setInterface(boolean interface_) {
+            this.interface_ = interface_;
+        }
+
         public void setExtends(String extends_) {
             this.extends_ = extends_;
         }
@@ -380,7 +967,28 @@ public class ServiceGenerator {
             imports.add(import_);
         }
 
+        /**
+         * Adds a package-private {@code static final} field, initialized with the
+         * given expression.
+         */
+        public void addConstant(String type, String name, String value) {
+            constantTypes.add(type);
+            constantNames.add(name);
+            constantValues.add(value);
+        }
+
         public void addField(String type, String name) {
+            fieldModifiers.add("private final");
+            fieldTypes.add(type);
+            fieldNames.add(name);
+        }
+
+        /**
+         * Adds a private {@code volatile} field, which unlike fields added with
+         * {@link #addField(String, String)} may be reassigned.
+         */
+        public void addVolatileField(String type, String name) {
+            fieldModifiers.add("private volatile");
             fieldTypes.add(type);
             fieldNames.add(name);
         }
@@ -415,20 +1023,31 @@ public class ServiceGenerator {
 
         public static class MethodBuilder {
 
+            private String typeParameters;
             private String return_ = "void";
             private String name;
+            private boolean private_;
+            private boolean static_;
             private boolean abstract_;
             private boolean final_;
             private String javadoc;
             private List<String> argTypes = new ArrayList<>();
             private List<String> argNames = new ArrayList<>();
             private List<String> annotations = new ArrayList<>();
+            private List<String> throws_ = new ArrayList<>();
             private StringBuilder body = new StringBuilder();
 
             public MethodBuilder(String name) {
                 this.name = name;
             }
 
+            /**
+             * Sets the type parameters of a generic method, including angle brackets.
+             */
+            public void setTypeParameters(String typeParameters) {
+                this.typeParameters = typeParameters;
+            }
+
             public void setReturn(String return_) {
                 this.return_ = return_;
             }
@@ -437,6 +1056,14 @@ public class ServiceGenerator {
                 this.javadoc = javadoc;
             }
 
+            public void setPrivate(boolean private_) {
+                this.private_ = private_;
+            }
+
+            public void setStatic(boolean static_) {
+                this.static_ = static_;
+            }
+
             public void setAbstract(boolean abstract_) {
                 this.abstract_ = abstract_;
             }
@@ -454,33 +1081,43 @@ public class ServiceGenerator {
                 annotations.add(annotation);
             }
 
+            public void addThrows(String exception) {
+                throws_.add(exception);
+            }
+
             public StringBuilder body() {
                 return body;
             }
         }
 
-        @Override
-        public String toString() {
-            var buf = new StringBuilder();
-            buf.append("package ").append(package_).append(";\n\n");
+        /**
+         * Writes the generated source to the given output, without first assembling
+         * it as a whole.
+         */
+        public void writeTo(Appendable out) throws IOException {
+            if (source != null) {
+                out.append("// Generated by protoc-gen-yamcs. DO NOT EDIT!\n");
+                out.append("// source: ").append(source).append("\n\n");
+            }
+            out.append("package ").append(package_).append(";\n\n");
 
             var sortedImports = new ArrayList<>(imports);
             Collections.sort(sortedImports);
             for (var import_ : sortedImports) {
                 if (!import_.equals(package_)) {
-                    buf.append("import ").append(import_).append(";\n");
+                    out.append("import ").append(import_).append(";\n");
                 }
             }
-            buf.append("\n");
+            out.append("\n");
 
             if (javadoc != null) {
-                buf.append("/**\n");
-                buf.append(generateJavadocBody(javadoc, " * "));
-                buf.append(" */\n");
+                out.append("/**\n");
+                out.append(generateJavadocBody(javadoc, " * "));
+                out.append(" */\n");
             }
 
             for (var annotation : annotations) {
-                buf.append(annotation).append("\n");
+                out.append(annotation).append("\n");
             }
 
             var modifiers = "public";
@@ -488,93 +1125,148 @@ public class ServiceGenerator {
                 modifiers += " abstract";
             }
 
-            buf.append(modifiers).append(" class ").append(class_);
+            out.append(modifiers).append(interface_ ? " interface " : " class ").append(class_);
             if (extends_ != null) {
-                buf.append(" extends ").append(extends_);
+                out.append(" extends ").append(extends_);
             }
             if (implements_ != null) {
-                buf.append(" implements ").append(implements_);
+                out.append(" implements ").append(implements_);
+            }
+            out.append(" {\n");
+
+            for (int i = 0; i < constantTypes.size(); i++) {
+                out.append("\n    static final ").append(constantTypes.get(i)).append(" ").append(constantNames.get(i))
+                        .append(" = ").append(constantValues.get(i)).append(";");
+            }
+            if (!constantTypes.isEmpty()) {
+                out.append("\n");
             }
-            buf.append(" {\n");
 
             for (int i = 0; i < fieldTypes.size(); i++) {
-                buf.append("\n    private final ").append(fieldTypes.get(i)).append(" ").append(fieldNames.get(i))
-                        .append(";");
+                out.append("\n    ").append(fieldModifiers.get(i)).append(" ").append(fieldTypes.get(i)).append(" ")
+                        .append(fieldNames.get(i)).append(";");
             }
             if (!fieldTypes.isEmpty()) {
-                buf.append("\n");
+                out.append("\n");
             }
 
             for (var constructor : constructors) {
-                buf.append("\n");
+                out.append("\n");
                 modifiers = "public";
-                buf.append("    ").append(modifiers).append(" ").append(class_);
-                buf.append("(");
+                out.append("    ").append(modifiers).append(" ").append(class_);
+                out.append("(");
                 for (int i = 0; i < constructor.argTypes.size(); i++) {
                     if (i > 0) {
-                        buf.append(", ");
+                        out.append(", ");
                     }
-                    buf.append(constructor.argTypes.get(i)).append(" ").append(constructor.argNames.get(i));
+                    out.append(constructor.argTypes.get(i)).append(" ").append(constructor.argNames.get(i));
                 }
-                buf.append(") {\n");
+                out.append(") {\n");
                 var lines = constructor.body.toString().trim().split("\n");
                 for (int i = 0; i < lines.length; i++) {
-                    buf.append("        ").append(lines[i]).append("\n");
+                    out.append("        ").append(lines[i]).append("\n");
                 }
-                buf.append("    }\n");
+                out.append("    }\n");
             }
 
             for (var method : methods) {
-                buf.append("\n");
+                out.append("\n");
                 if (method.javadoc != null) {
-                    buf.append("    /**\n");
-                    buf.append(generateJavadocBody(method.javadoc, "     * "));
-                    buf.append("     */\n");
+                    out.append("    /**\n");
+                    out.append(generateJavadocBody(method.javadoc, "     * "));
+                    out.append("     */\n");
                 }
                 for (var annotation : method.annotations) {
-                    buf.append("    ").append(annotation).append("\n");
+                    out.append("    ").append(annotation).append("\n");
+                }
+                modifiers = method.private_ ? "private" : "public";
+                if (method.static_) {
+                    modifiers += " static";
                 }
-                modifiers = "public";
                 if (method.abstract_) {
                     modifiers += " abstract";
                 }
                 if (method.final_) {
                     modifiers += " final";
                 }
-                if (method.abstract_) {
-                    buf.append("    ").append(modifiers).append(" ").append(method.return_).append(" ")
-                            .append(method.name);
-                    buf.append("(");
+                if (method.typeParameters != null) {
+                    modifiers += " " + method.typeParameters;
+                }
+                if (interface_ || method.abstract_) {
+                    out.append("    ");
+                    if (!interface_) {
+                        // Methods of an interface are implicitly public abstract
+                        out.append(modifiers).append(" ");
+                    }
+                    out.append(method.return_).append(" ").append(method.name);
+                    out.append("(");
                     for (int i = 0; i < method.argTypes.size(); i++) {
                         if (i > 0) {
-                            buf.append(", ");
+                            out.append(", ");
                         }
-                        buf.append(method.argTypes.get(i)).append(" ").append(method.argNames.get(i));
+                        out.append(method.argTypes.get(i)).append(" ").append(method.argNames.get(i));
+                    }
+                    out.append(")");
+                    if (!method.throws_.isEmpty()) {
+                        out.append(" throws ").append(String.join(", ", method.throws_));
                     }
-                    buf.append(");\n");
+                    out.append(";\n");
                 } else {
-                    buf.append("    ").append(modifiers).append(" ").append(method.return_).append(" ")
+                    out.append("    ").append(modifiers).append(" ").append(method.return_).append(" ")
                             .append(method.name);
-                    buf.append("(");
+                    out.append("(");
                     for (int i = 0; i < method.argTypes.size(); i++) {
                         if (i > 0) {
-                            buf.append(", ");
+                            out.append(", ");
                         }
-                        buf.append(method.argTypes.get(i)).append(" ").append(method.argNames.get(i));
+                        out.append(method.argTypes.get(i)).append(" ").append(method.argNames.get(i));
+                    }
+                    out.append(")");
+                    if (!method.throws_.isEmpty()) {
+                        out.append(" throws ").append(String.join(", ", method.throws_));
                     }
-                    buf.append(") {\n");
+                    out.append(" {\n");
                     var lines = method.body.toString().trim().split("\n");
                     for (int i = 0; i < lines.length; i++) {
-                        buf.append("        ").append(lines[i]).append("\n");
+                        out.append("        ").append(lines[i]).append("\n");
                     }
-                    buf.append("    }\n");
+                    out.append("    }\n");
                 }
             }
 
-            return buf.append("}\n").toString();
+            out.append("}\n");
+        }
+
+        /**
+         * Returns a response file with the generated source, encoded directly into
+         * its content bytes.
+         */
+        public File.Builder toFile(String filename) {
+            var content = ByteString.newOutput();
+            try (var writer = new OutputStreamWriter(content, StandardCharsets.UTF_8)) {
+                writeTo(writer);
+            } catch (IOException e) {
+                // Not expected, the output is in memory
+                throw new UncheckedIOException(e);
+            }
+            return File.newBuilder().setName(filename).setContentBytes(content.toByteString());
+        }
+
+        @Override
+        public String toString() {
+            var buf = new StringBuilder();
+            try {
+                writeTo(buf);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return buf.toString();
         }
 
         private static String generateJavadocBody(String raw, String prefix) {
+            if (!raw.endsWith("\n")) {
+                raw += "\n";
+            }
             var escaped = "<pre>\n" + raw.replace("@", "{@literal @}")
                     .replace("/*", "{@literal /}*")
                     .replace("*/", "*{@literal /}")
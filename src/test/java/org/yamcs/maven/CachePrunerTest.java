@@ -0,0 +1,71 @@
+package org.yamcs.maven;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CachePrunerTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void unusedEntriesAreDeleted() throws Exception {
+        var used = TestTools.write(tmp.resolve("protoc-gen-yamcs-used.jar"), "used");
+        var unused = TestTools.write(tmp.resolve("protoc-gen-yamcs-unused.jar"), "unused");
+        var unusedDirectory = TestTools.write(tmp.resolve("entry/file.java"), "unused").getParent();
+        setAge(used, 40);
+        setAge(unused, 40);
+        setAge(unusedDirectory, 40);
+
+        CachePruner.touch(used.toFile());
+        assertEquals(2, CachePruner.prune(tmp.toFile(), 30));
+        assertTrue(Files.exists(used));
+        assertFalse(Files.exists(unused));
+        assertFalse(Files.exists(unusedDirectory));
+    }
+
+    @Test
+    void pruningIsLimitedToOncePerDay() throws Exception {
+        var unused = TestTools.write(tmp.resolve("a.jar"), "a");
+        CachePruner.prune(tmp.toFile(), 30);
+
+        setAge(unused, 40);
+        assertEquals(0, CachePruner.prune(tmp.toFile(), 30));
+        assertTrue(Files.exists(unused));
+    }
+
+    @Test
+    void keptNamesAreNotDeleted() throws Exception {
+        var index = TestTools.write(tmp.resolve("index.txt"), "index");
+        var unused = TestTools.write(tmp.resolve("0123.entries"), "entries");
+        setAge(index, 40);
+        setAge(unused, 40);
+
+        assertEquals(1, CachePruner.prune(tmp.toFile(), 30, "index.txt"));
+        assertTrue(Files.exists(index));
+        assertFalse(Files.exists(unused));
+    }
+
+    @Test
+    void zeroRetentionKeepsEverything() throws Exception {
+        var unused = TestTools.write(tmp.resolve("a.jar"), "a");
+        setAge(unused, 400);
+
+        assertEquals(0, CachePruner.prune(tmp.toFile(), 0));
+        assertTrue(Files.exists(unused));
+    }
+
+    private static void setAge(Path file, int days) throws Exception {
+        var time = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+    }
+}
@@ -0,0 +1,90 @@
+package org.yamcs.maven;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FingerprintIndexTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void savedIndexLoadsEqual() {
+        var index = new FingerprintIndex();
+        index.put("protoc.version", "3.19.6");
+        index.put("source:a.proto", "abc");
+        var file = tmp.resolve("sub/fingerprints.txt").toFile();
+        index.save(file);
+
+        var loaded = FingerprintIndex.load(file);
+        assertEquals(index, loaded);
+        assertEquals("abc", loaded.get("source:a.proto"));
+    }
+
+    @Test
+    void missingOrForeignFileLoadsEmpty() throws IOException {
+        assertTrue(FingerprintIndex.load(tmp.resolve("missing.txt").toFile()).isEmpty());
+
+        var foreign = TestTools.write(tmp.resolve("foreign.txt"), "something else\nsource:a.proto\tabc\n");
+        assertTrue(FingerprintIndex.load(foreign.toFile()).isEmpty());
+    }
+
+    @Test
+    void contentHashIgnoresModificationTime() throws IOException {
+        var file = TestTools.write(tmp.resolve("a.proto"), "syntax = \"proto3\";\n");
+        var hash = FingerprintIndex.sha256(file.toFile());
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+        assertEquals(hash, FingerprintIndex.sha256(file.toFile()));
+
+        TestTools.write(file, "syntax = \"proto2\";\n");
+        assertNotEquals(hash, FingerprintIndex.sha256(file.toFile()));
+    }
+
+    @Test
+    void entriesAreSelectedByPrefix() {
+        var index = new FingerprintIndex();
+        index.put("output:b/B.java", "b.proto");
+        index.put("output:a/A.java", "a.proto");
+        index.put("source:a.proto", "abc");
+
+        assertEquals(Map.of("a/A.java", "a.proto", "b/B.java", "b.proto"), index.getEntries("output:"));
+    }
+
+    @Test
+    void excludedPrefixesAreIgnoredInComparison() {
+        var index = new FingerprintIndex();
+        index.put("protoc.version", "3.19.6");
+        index.put("source:a.proto", "abc");
+
+        var other = new FingerprintIndex();
+        other.put("protoc.version", "3.19.6");
+        other.put("source:a.proto", "def");
+        other.put("output:A.java", "a.proto");
+
+        assertFalse(index.equalsExcluding(other));
+        assertTrue(index.equalsExcluding(other, "source:", "output:"));
+
+        other.put("protoc.version", "3.21.0");
+        assertFalse(index.equalsExcluding(other, "source:", "output:"));
+    }
+
+    @Test
+    void keysMustNotContainSeparators() {
+        var index = new FingerprintIndex();
+        assertThrows(IllegalArgumentException.class, () -> index.put("a\tb", "c"));
+        assertThrows(IllegalArgumentException.class, () -> index.put("a\nb", "c"));
+    }
+}
@@ -0,0 +1,93 @@
+package org.yamcs.maven;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GeneratedClassCacheTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void keyDependsOnClassDirectoryContent() throws Exception {
+        var sources = tmp.resolve("sources");
+        TestTools.write(sources.resolve("org/example/A.java"), "package org.example; class A {}");
+        var classes = tmp.resolve("classes");
+        var classFile = TestTools.write(classes.resolve("org/example/B.class"), "B");
+        var classpath = List.of(classes.toFile());
+
+        var key = computeKey(sources, classpath);
+
+        // A rebuilt reactor module with identical output
+        Files.setLastModifiedTime(classFile, FileTime.fromMillis(0));
+        assertEquals(key, computeKey(sources, classpath));
+
+        // Same size, different content
+        TestTools.write(classFile, "C");
+        assertNotEquals(key, computeKey(sources, classpath));
+    }
+
+    @Test
+    void keyDependsOnJarStat() throws Exception {
+        var sources = tmp.resolve("sources");
+        TestTools.write(sources.resolve("org/example/A.java"), "package org.example; class A {}");
+        var jar = TestTools.write(tmp.resolve("lib.jar"), "jar");
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(1000));
+        var classpath = List.of(jar.toFile());
+
+        var key = computeKey(sources, classpath);
+        assertEquals(key, computeKey(sources, classpath));
+
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(2000));
+        assertNotEquals(key, computeKey(sources, classpath));
+    }
+
+    @Test
+    void unchangedFilesAreNotRead() throws Exception {
+        var sources = tmp.resolve("sources");
+        var sourceFile = TestTools.write(sources.resolve("org/example/A.java"), "package org.example; class A {}");
+        var classes = tmp.resolve("classes");
+        var classFile = TestTools.write(classes.resolve("org/example/B.class"), "B");
+        var classpath = List.of(classes.toFile());
+
+        var hashes = new FingerprintIndex();
+        var key = GeneratedClassCache.computeKey(sources.toFile(), classpath, "11", new FingerprintIndex(), hashes);
+
+        // Hashes are reused as long as size and modification time match
+        var sourceStat = Files.getLastModifiedTime(sourceFile);
+        var classStat = Files.getLastModifiedTime(classFile);
+        TestTools.write(sourceFile, "package org.example; class X {}");
+        TestTools.write(classFile, "X");
+        Files.setLastModifiedTime(sourceFile, sourceStat);
+        Files.setLastModifiedTime(classFile, classStat);
+        var nextHashes = new FingerprintIndex();
+        assertEquals(key, GeneratedClassCache.computeKey(sources.toFile(), classpath, "11", hashes, nextHashes));
+        assertEquals(hashes, nextHashes);
+    }
+
+    @Test
+    void keyDependsOnRelease() throws Exception {
+        var sources = tmp.resolve("sources");
+        TestTools.write(sources.resolve("org/example/A.java"), "package org.example; class A {}");
+
+        assertNotEquals(GeneratedClassCache.computeKey(sources.toFile(), List.of(), "11",
+                new FingerprintIndex(), new FingerprintIndex()),
+                GeneratedClassCache.computeKey(sources.toFile(), List.of(), "17",
+                        new FingerprintIndex(), new FingerprintIndex()));
+    }
+
+    private static String computeKey(Path sources, List<File> classpath) throws IOException {
+        return GeneratedClassCache.computeKey(sources.toFile(), classpath, "11",
+                new FingerprintIndex(), new FingerprintIndex());
+    }
+}
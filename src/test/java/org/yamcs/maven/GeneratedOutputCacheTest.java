@@ -0,0 +1,45 @@
+package org.yamcs.maven;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GeneratedOutputCacheTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void editedOutputsDoNotAffectCache() throws Exception {
+        var cache = new GeneratedOutputCache(tmp.resolve("cache").toFile());
+        var outputDirectory = tmp.resolve("out");
+        var generatedFile = TestTools.write(outputDirectory.resolve("org/example/A.java"), "class A {}");
+        cache.store("key", outputDirectory.toFile(), Map.of("org/example/A.java", "a.proto"), null);
+
+        Files.delete(generatedFile);
+        var restored = cache.restore("key", outputDirectory.toFile(), null);
+        assertEquals(Map.of("org/example/A.java", "a.proto"), restored);
+
+        // Edit in place, as an IDE or formatter would
+        Files.writeString(generatedFile, "class A { int edited; }");
+        var otherOutputDirectory = tmp.resolve("other");
+        cache.restore("key", otherOutputDirectory.toFile(), null);
+        assertEquals("class A {}", Files.readString(otherOutputDirectory.resolve("org/example/A.java")));
+
+        // Restoring again replaces the edited file
+        cache.restore("key", outputDirectory.toFile(), null);
+        assertEquals("class A {}", Files.readString(generatedFile));
+    }
+
+    @Test
+    void unknownKeyIsNotRestored() {
+        var cache = new GeneratedOutputCache(tmp.resolve("cache").toFile());
+        assertNull(cache.restore("missing", tmp.resolve("out").toFile(), null));
+    }
+}
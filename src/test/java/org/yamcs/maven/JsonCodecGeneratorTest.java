@@ -0,0 +1,180 @@
+package org.yamcs.maven;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Message;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
+import com.google.protobuf.util.JsonFormat;
+
+/**
+ * Compiles the JSON codecs generated for a fixture proto, and compares them with
+ * {@code JsonFormat}.
+ */
+class JsonCodecGeneratorTest {
+
+    private static final List<String> SAMPLES = List.of(
+            "{}",
+            "{\"doubleValue\": 1.5, \"floatValue\": -0.25, \"int32Value\": -7, \"int64Value\": \"-9007199254740993\","
+                    + " \"uint32Value\": 4294967295, \"uint64Value\": \"18446744073709551615\","
+                    + " \"sint32Value\": -3, \"sint64Value\": \"-4\", \"fixed32Value\": 5, \"fixed64Value\": \"6\","
+                    + " \"sfixed32Value\": -8, \"sfixed64Value\": \"-9\", \"boolValue\": true,"
+                    + " \"stringValue\": \"<a href='x'>\\u00e9\\u2028</a>\", \"bytesValue\": \"AAH/\","
+                    + " \"color\": \"GREEN\"}",
+            "{\"doubleValue\": \"NaN\", \"floatValue\": \"-Infinity\"}",
+            "{\"doubleValue\": \"Infinity\", \"color\": 42}",
+            "{\"doubleValue\": 1e300, \"floatValue\": 3.4028235e38}");
+
+    private static final List<String> COMPOSITE_SAMPLES = List.of(
+            "{}",
+            "{\"present\": \"\"}",
+            "{\"scalars\": {}, \"numbers\": [\"1\", \"-2\"], \"colors\": [\"RED\", \"COLOR_UNSPECIFIED\"]}",
+            "{\"named\": {\"a\": {\"int32Value\": 1}, \"\": {}}, \"labels\": {\"18446744073709551615\": \"max\"},"
+                    + " \"flags\": {\"true\": \"RED\", \"false\": \"GREEN\"}}",
+            "{\"renamed\": \"x\", \"time\": \"2020-01-02T03:04:05.678Z\", \"wrapped\": \"12\", \"text\": \"\"}",
+            "{\"nested\": {\"children\": [{\"text\": \"a\"}, {\"nested\": {}}]}}");
+
+    @TempDir
+    static Path tmp;
+
+    private static ClassLoader classLoader;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        var sourceRoot = TestTools.copyResources(tmp.resolve("protos"), "protos", List.of("example/json.proto"));
+        var includeRoot = TestTools.copyResources(tmp.resolve("include"), "", List.of(
+                "google/protobuf/timestamp.proto", "google/protobuf/wrappers.proto"));
+        var sourceDirectory = Files.createDirectories(tmp.resolve("java"));
+
+        var descriptorSetFile = tmp.resolve("json.protobin");
+        TestTools.runProtoc(List.of("--proto_path=" + sourceRoot, "--proto_path=" + includeRoot,
+                "--java_out=" + sourceDirectory, "--include_imports",
+                "--descriptor_set_out=" + descriptorSetFile, "example/json.proto"));
+        var descriptorSet = FileDescriptorSet.parseFrom(Files.readAllBytes(descriptorSetFile));
+
+        var request = CodeGeneratorRequest.newBuilder()
+                .addFileToGenerate("example/json.proto")
+                .addAllProtoFile(descriptorSet.getFileList())
+                .setParameter(ServiceGenerator.OPTION_JSON)
+                .build();
+        var response = ServiceGenerator.generate(request);
+        assertFalse(response.hasError(), response.getError());
+        for (var file : response.getFileList()) {
+            TestTools.write(sourceDirectory.resolve(file.getName()), file.getContent());
+        }
+        classLoader = TestTools.compile(sourceDirectory, Files.createDirectories(tmp.resolve("classes")));
+    }
+
+    @Test
+    void scalarsMatchJsonFormat() throws Exception {
+        for (var sample : SAMPLES) {
+            assertMatchesJsonFormat("Scalars", sample);
+        }
+    }
+
+    @Test
+    void compositesMatchJsonFormat() throws Exception {
+        for (var sample : COMPOSITE_SAMPLES) {
+            assertMatchesJsonFormat("Composite", sample);
+        }
+    }
+
+    @Test
+    void protoFieldNamesAreAccepted() throws Exception {
+        var message = parse("Composite", "{\"custom_name\": \"x\", \"scalars\": {\"int64_value\": 3}}");
+        assertEquals(message, read("Composite", JsonFormat.printer().preservingProtoFieldNames().print(message)));
+    }
+
+    @Test
+    void unknownFieldsAreRejected() {
+        var e = assertThrows(InvocationTargetException.class, () -> read("Scalars", "{\"unknown\": 1}"));
+        assertEquals(MalformedJsonException.class, e.getCause().getClass());
+    }
+
+    @Test
+    void outerClassnameMatchesProtoc() throws Exception {
+        var sourceRoot = tmp.resolve("naming");
+        TestTools.write(sourceRoot.resolve("snake_case_file.proto"), String.join("\n",
+                "syntax = \"proto3\";",
+                "package a;",
+                "message Item {}"));
+        TestTools.write(sourceRoot.resolve("item_list.proto"), String.join("\n",
+                "syntax = \"proto3\";",
+                "package b;",
+                "message Wrapper {",
+                "  message ItemList {}",
+                "}"));
+        TestTools.write(sourceRoot.resolve("v2api.proto"), String.join("\n",
+                "syntax = \"proto3\";",
+                "package c;",
+                "service V2Api {}"));
+        var names = List.of("snake_case_file.proto", "item_list.proto", "v2api.proto");
+
+        var javaDirectory = Files.createDirectories(tmp.resolve("naming-java"));
+        var descriptorSetFile = tmp.resolve("naming.protobin");
+        TestTools.runProtoc(List.of("--proto_path=" + sourceRoot, "--java_out=" + javaDirectory,
+                "--descriptor_set_out=" + descriptorSetFile, names.get(0), names.get(1), names.get(2)));
+        var descriptorSet = FileDescriptorSet.parseFrom(Files.readAllBytes(descriptorSetFile));
+
+        var expected = List.of("SnakeCaseFile", "ItemListOuterClass", "V2ApiOuterClass");
+        for (int i = 0; i < names.size(); i++) {
+            var file = descriptorSet.getFile(i);
+            var outerClassname = JsonCodecGenerator.getOuterClassname(file);
+            assertEquals(expected.get(i), outerClassname, file.getName());
+            var packageDirectory = javaDirectory.resolve(file.getPackage());
+            assertTrue(Files.isRegularFile(packageDirectory.resolve(outerClassname + ".java")), outerClassname);
+        }
+    }
+
+    private static void assertMatchesJsonFormat(String messageName, String json) throws Exception {
+        var message = parse(messageName, json);
+        var expected = JsonFormat.printer().omittingInsignificantWhitespace().print(message);
+        assertEquals(expected, write(message), json);
+        assertEquals(message, read(messageName, expected), json);
+    }
+
+    private static Message parse(String messageName, String json) throws Exception {
+        var builder = (Message.Builder) getMessageClass(messageName).getMethod("newBuilder").invoke(null);
+        JsonFormat.parser().merge(json, builder);
+        return builder.build();
+    }
+
+    private static String write(Message message) throws Exception {
+        var buf = new StringWriter();
+        var out = new JsonWriter(buf);
+        out.setHtmlSafe(true);
+        getCodecClass().getMethod("write", JsonWriter.class, message.getClass()).invoke(null, out, message);
+        out.flush();
+        return buf.toString();
+    }
+
+    private static Message read(String messageName, String json) throws Exception {
+        var in = new JsonReader(new StringReader(json));
+        return (Message) getCodecClass().getMethod("read" + messageName, JsonReader.class).invoke(null, in);
+    }
+
+    private static Class<?> getMessageClass(String messageName) throws ClassNotFoundException {
+        return classLoader.loadClass("org.example.json.JsonProto$" + messageName);
+    }
+
+    private static Class<?> getCodecClass() throws ClassNotFoundException {
+        return classLoader.loadClass("org.example.json.JsonProtoJson");
+    }
+}
@@ -0,0 +1,111 @@
+package org.yamcs.maven;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProtoImportGraphTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void importsInCommentsAndStringsAreIgnored() {
+        var source = String.join("\n",
+                "syntax = \"proto3\";",
+                "import \"a.proto\";",
+                "import public \"b/b.proto\";",
+                "import weak \"c.proto\";",
+                "// import \"commented.proto\";",
+                "/* import \"block.proto\";",
+                "   import \"block2.proto\"; */",
+                "option (x) = \"import \\\"string.proto\\\";\";",
+                "message M { string s = 1; } // trailing import \"trailing.proto\";",
+                "import \"d.proto\" ;");
+
+        assertEquals(List.of("a.proto", "b/b.proto", "c.proto", "d.proto"), ProtoImportGraph.parseImports(source));
+    }
+
+    @Test
+    void reverseClosureIsTransitive() throws Exception {
+        var graph = buildGraph(
+                "base.proto", "",
+                "mid.proto", "base.proto",
+                "top.proto", "mid.proto",
+                "other.proto", "");
+
+        assertEquals(Set.of("base.proto", "mid.proto", "top.proto"), graph.getReverseClosure(List.of("base.proto")));
+        assertEquals(Set.of("top.proto"), graph.getReverseClosure(List.of("top.proto")));
+        assertEquals(Set.of("other.proto"), graph.getReverseClosure(List.of("other.proto")));
+    }
+
+    @Test
+    void reverseClosureExcludesFilesOutsideGraph() throws Exception {
+        var graph = buildGraph(
+                "a.proto", "google/protobuf/timestamp.proto",
+                "b.proto", "");
+
+        // Removed files or dependency files still propagate to their importers
+        assertEquals(Set.of("a.proto"), graph.getReverseClosure(List.of("google/protobuf/timestamp.proto")));
+        assertEquals(Set.of(), graph.getReverseClosure(List.of("removed.proto")));
+    }
+
+    @Test
+    void partitionKeepsImportingFilesTogether() throws Exception {
+        var graph = buildGraph(
+                "a1.proto", "",
+                "a2.proto", "a1.proto",
+                "b1.proto", "",
+                "b2.proto", "b1.proto");
+
+        var shards = graph.partition(graph.getFiles(), 2, name -> 1);
+        assertEquals(2, shards.size());
+        assertTrue(shards.contains(List.of("a1.proto", "a2.proto")));
+        assertTrue(shards.contains(List.of("b1.proto", "b2.proto")));
+    }
+
+    @Test
+    void partitionSplitsDominantComponent() throws Exception {
+        var graph = buildGraph(
+                "common.proto", "",
+                "a.proto", "common.proto",
+                "b.proto", "common.proto",
+                "c.proto", "common.proto");
+
+        var shards = graph.partition(graph.getFiles(), 2, name -> 1);
+        assertEquals(2, shards.size());
+        var all = new HashSet<String>();
+        for (var shard : shards) {
+            assertEquals(2, shard.size());
+            all.addAll(shard);
+        }
+        assertEquals(graph.getFiles(), all);
+    }
+
+    /**
+     * Builds a graph from pairs of file names and comma-separated imports.
+     */
+    private ProtoImportGraph buildGraph(String... namesAndImports) throws Exception {
+        var sourceRoot = tmp.resolve("proto");
+        var files = new ArrayList<File>();
+        for (int i = 0; i < namesAndImports.length; i += 2) {
+            var buf = new StringBuilder("syntax = \"proto3\";\n");
+            for (var imported : namesAndImports[i + 1].split(",")) {
+                if (!imported.isEmpty()) {
+                    buf.append("import \"").append(imported).append("\";\n");
+                }
+            }
+            files.add(TestTools.write(sourceRoot.resolve(namesAndImports[i]), buf.toString()).toFile());
+        }
+        return ProtoImportGraph.build(sourceRoot.toFile(), files);
+    }
+}
@@ -0,0 +1,347 @@
+package org.yamcs.maven;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+import org.yamcs.maven.ProtocMojo.PreparedTools;
+import org.yamcs.maven.TestTools.RecordingLog;
+
+/**
+ * Runs the compilation steps of {@link ProtocMojo} against a real {@code protoc}.
+ */
+class ProtocMojoTest {
+
+    private static final String SKIPPED = "Skipping compilation because sources and dependencies are unchanged.";
+
+    @TempDir
+    Path tmp;
+
+    private Path sourceRoot;
+    private Path outputDirectory;
+    private ProtocMojo mojo;
+    private RecordingLog log;
+
+    @BeforeEach
+    void setUp() {
+        sourceRoot = tmp.resolve("proto");
+        outputDirectory = tmp.resolve("out");
+
+        mojo = new ProtocMojo();
+        TestTools.setField(mojo, "project", new MavenProject());
+        TestTools.setField(mojo, "buildContext", new DefaultBuildContext());
+        TestTools.setField(mojo, "protocVersion", "3.19.6");
+        TestTools.setField(mojo, "protoSourceRoot", sourceRoot.toFile());
+        TestTools.setField(mojo, "outputDirectory", outputDirectory.toFile());
+        TestTools.setField(mojo, "stagingDirectory", tmp.resolve("staging").toFile());
+        TestTools.setField(mojo, "fingerprintIndexFile", tmp.resolve("fingerprints.txt").toFile());
+        TestTools.setField(mojo, "cacheDirectory", tmp.resolve("cache").toFile());
+        TestTools.setField(mojo, "temporaryProtoFileDirectory", tmp.resolve("dependencies").toFile());
+        TestTools.setField(mojo, "includes", new String[] { "**/*.proto" });
+        TestTools.setField(mojo, "excludes", new String[0]);
+        TestTools.setField(mojo, "checkStaleness", true);
+        TestTools.setField(mojo, "incremental", true);
+        TestTools.setField(mojo, "clearOutputDirectory", true);
+        TestTools.setField(mojo, "threads", 1);
+        log = new RecordingLog();
+        mojo.setLog(log);
+    }
+
+    @Test
+    void unchangedSourcesAreNotRecompiled() throws Exception {
+        writeProto("a.proto", "A", "");
+        generate();
+        assertFalse(log.contains(SKIPPED));
+        var generatedFile = outputDirectory.resolve("org/example/a/A.java");
+        var modified = Files.getLastModifiedTime(generatedFile);
+
+        log.messages.clear();
+        generate();
+        assertTrue(log.contains(SKIPPED));
+        assertEquals(modified, Files.getLastModifiedTime(generatedFile));
+    }
+
+    @Test
+    void touchedSourceIsNotRecompiled() throws Exception {
+        var source = writeProto("a.proto", "A", "");
+        generate();
+
+        Files.setLastModifiedTime(source, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        log.messages.clear();
+        generate();
+        assertTrue(log.contains(SKIPPED));
+    }
+
+    @Test
+    void changedSourceIsRecompiled() throws Exception {
+        writeProto("a.proto", "A", "");
+        generate();
+
+        writeProto("a.proto", "A", "string renamed_field = 2;");
+        log.messages.clear();
+        generate();
+        assertFalse(log.contains(SKIPPED));
+        var generated = Files.readString(outputDirectory.resolve("org/example/a/A.java"));
+        assertTrue(generated.contains("getRenamedField"));
+    }
+
+    @Test
+    void changedOptionIsRecompiled() throws Exception {
+        writeProto("a.proto", "A", "");
+        generate();
+
+        TestTools.setField(mojo, "serviceOptions", List.of("metrics"));
+        log.messages.clear();
+        generate();
+        assertFalse(log.contains(SKIPPED));
+    }
+
+    @Test
+    void missingOutputIsRegenerated() throws Exception {
+        writeProto("a.proto", "A", "");
+        generate();
+
+        var generatedFile = outputDirectory.resolve("org/example/a/A.java");
+        Files.delete(generatedFile);
+        log.messages.clear();
+        generate();
+        assertFalse(log.contains(SKIPPED));
+        assertTrue(Files.isRegularFile(generatedFile));
+    }
+
+    @Test
+    void unchangedDependencyIsNotExtracted() throws Exception {
+        var jar = tmp.resolve("dep.jar");
+        writeJar(jar, "package dep;\nmessage DepMessage {}\n");
+        var artifact = new DefaultArtifact("org.example", "dep", "1.0", "compile", "jar", null,
+                new DefaultArtifactHandler("jar"));
+        artifact.setFile(jar.toFile());
+        var project = new MavenProject();
+        project.setArtifacts(Set.of(artifact));
+        TestTools.setField(mojo, "project", project);
+        writeProto("a.proto", "A", "dep.DepMessage dep = 2;", "dep/dep.proto");
+        generate();
+        var extractedFile = tmp.resolve("dependencies/dep/dep.proto");
+        assertTrue(Files.isRegularFile(extractedFile));
+
+        Files.delete(extractedFile);
+        log.messages.clear();
+        generate();
+        assertTrue(log.contains(SKIPPED));
+        assertFalse(Files.exists(extractedFile));
+
+        // Rebuilt with the same definitions
+        writeJar(jar, "package dep;\nmessage DepMessage {}\n");
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        log.messages.clear();
+        generate();
+        assertTrue(log.contains(SKIPPED));
+        assertTrue(Files.isRegularFile(extractedFile));
+
+        writeJar(jar, "package dep;\nmessage DepMessage { string id = 1; }\n");
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis() + 120_000));
+        log.messages.clear();
+        generate();
+        assertFalse(log.contains(SKIPPED));
+    }
+
+    @Test
+    void changedImportRecompilesImporters() throws Exception {
+        writeProto("base.proto", "Base", "");
+        writeProto("mid.proto", "Mid", "base.BaseMessage base = 2;", "base.proto");
+        writeProto("top.proto", "Top", "mid.MidMessage mid = 2;", "mid.proto");
+        writeProto("other.proto", "Other", "");
+        generate();
+        var otherFile = outputDirectory.resolve("org/example/other/Other.java");
+        var otherModified = Files.getLastModifiedTime(otherFile);
+
+        writeProto("base.proto", "Base", "int32 added_field = 2;");
+        log.messages.clear();
+        generate();
+        assertTrue(log.contains("Compiling 3 of 4 proto file(s)"));
+        assertEquals(otherModified, Files.getLastModifiedTime(otherFile));
+        assertTrue(Files.readString(outputDirectory.resolve("org/example/base/Base.java")).contains("getAddedField"));
+    }
+
+    @Test
+    void removedSourceDeletesOutputs() throws Exception {
+        writeProto("a.proto", "A", "");
+        var removed = writeProto("b.proto", "B", "");
+        generate();
+        var removedOutput = outputDirectory.resolve("org/example/b/B.java");
+        assertTrue(Files.isRegularFile(removedOutput));
+
+        Files.delete(removed);
+        log.messages.clear();
+        generate();
+        assertFalse(log.contains(SKIPPED));
+        assertFalse(Files.exists(removedOutput));
+        assertTrue(Files.isRegularFile(outputDirectory.resolve("org/example/a/A.java")));
+    }
+
+    @Test
+    void descriptorSetMatchesProtoc() throws Exception {
+        var source = String.join("\n",
+                "syntax = \"proto3\";",
+                "// Detached comment",
+                "",
+                "package a;",
+                "option java_package = \"org.example.a\";",
+                "// Leading comment",
+                "message AMessage {",
+                "  string id = 1; // Trailing comment",
+                "}");
+        TestTools.write(sourceRoot.resolve("a.proto"), source);
+        var descriptorSetDirectory = tmp.resolve("descriptors");
+        TestTools.setField(mojo, "writeDescriptorSet", true);
+        TestTools.setField(mojo, "descriptorSetOutputDirectory", descriptorSetDirectory.toFile());
+        TestTools.setField(mojo, "descriptorSetFileName", "a.protobin");
+        TestTools.setField(mojo, "includeSourceInfoInDescriptorSet", true);
+        generate();
+
+        var expectedFile = tmp.resolve("expected.protobin");
+        TestTools.runProtoc(List.of("--proto_path=" + sourceRoot, "--include_source_info",
+                "--descriptor_set_out=" + expectedFile, "a.proto"));
+        assertArrayEquals(Files.readAllBytes(expectedFile),
+                Files.readAllBytes(descriptorSetDirectory.resolve("a.protobin")));
+
+        // Also when only the descriptor set is regenerated
+        TestTools.write(sourceRoot.resolve("b.proto"), "syntax = \"proto3\";\npackage b;\n");
+        generate();
+        TestTools.runProtoc(List.of("--proto_path=" + sourceRoot, "--include_source_info",
+                "--descriptor_set_out=" + expectedFile, "a.proto", "b.proto"));
+        assertArrayEquals(Files.readAllBytes(expectedFile),
+                Files.readAllBytes(descriptorSetDirectory.resolve("a.protobin")));
+    }
+
+    @Test
+    void updatedDescriptorSetMatchesProtoc() throws Exception {
+        writeProto("base.proto", "Base", "");
+        writeProto("mid.proto", "Mid", "base.BaseMessage base = 2;", "base.proto");
+        writeProto("top.proto", "Top", "mid.MidMessage mid = 2;", "mid.proto");
+        var other = writeProto("other.proto", "Other", "");
+        var descriptorSetDirectory = tmp.resolve("descriptors");
+        TestTools.setField(mojo, "writeDescriptorSet", true);
+        TestTools.setField(mojo, "descriptorSetOutputDirectory", descriptorSetDirectory.toFile());
+        TestTools.setField(mojo, "descriptorSetFileName", "all.protobin");
+        TestTools.setField(mojo, "includeDependenciesInDescriptorSet", true);
+        TestTools.setField(mojo, "includeSourceInfoInDescriptorSet", true);
+        TestTools.setField(mojo, "threads", 2);
+        generate();
+
+        writeProto("base.proto", "Base", "int32 added_field = 2;");
+        log.messages.clear();
+        generate();
+        assertTrue(log.contains("Compiling 3 of 4 proto file(s)"));
+        assertDescriptorSetMatchesProtoc(descriptorSetDirectory.resolve("all.protobin"));
+
+        Files.delete(other);
+        generate();
+        assertDescriptorSetMatchesProtoc(descriptorSetDirectory.resolve("all.protobin"));
+    }
+
+    @Test
+    void releaseIsTakenFromCompilerPlugin() throws Exception {
+        var project = new MavenProject();
+        TestTools.setField(mojo, "project", project);
+        project.getProperties().setProperty("maven.compiler.release", "11");
+        assertEquals("11", mojo.getCompilerRelease());
+
+        var compilerPlugin = new Plugin();
+        compilerPlugin.setGroupId("org.apache.maven.plugins");
+        compilerPlugin.setArtifactId("maven-compiler-plugin");
+        compilerPlugin.setConfiguration(Xpp3DomBuilder.build(
+                new StringReader("<configuration><target>1.8</target></configuration>")));
+        project.getBuild().addPlugin(compilerPlugin);
+        project.getBuild().flushPluginMap();
+        assertEquals("8", mojo.getCompilerRelease());
+
+        var execution = new PluginExecution();
+        execution.setId("default-compile");
+        execution.setConfiguration(Xpp3DomBuilder.build(
+                new StringReader("<configuration><release>17</release></configuration>")));
+        compilerPlugin.addExecution(execution);
+        compilerPlugin.flushExecutionMap();
+        assertEquals("17", mojo.getCompilerRelease());
+
+        TestTools.setField(mojo, "release", "21");
+        assertEquals("21", mojo.getCompilerRelease());
+    }
+
+    @Test
+    void unknownReleaseIsNull() {
+        assertNull(mojo.getCompilerRelease());
+    }
+
+    Path writeProto(String name, String outerClassname, String extraFields, String... imports) throws Exception {
+        var buf = new StringBuilder();
+        buf.append("syntax = \"proto3\";\n");
+        var packageName = name.replace(".proto", "").replace('/', '.');
+        buf.append("package ").append(packageName).append(";\n");
+        buf.append("option java_package = \"org.example.").append(packageName).append("\";\n");
+        buf.append("option java_outer_classname = \"").append(outerClassname).append("\";\n");
+        for (var imported : imports) {
+            buf.append("import \"").append(imported).append("\";\n");
+        }
+        buf.append("message ").append(outerClassname).append("Message {\n");
+        buf.append("  string id = 1;\n");
+        buf.append("  ").append(extraFields).append("\n");
+        buf.append("}\n");
+        return TestTools.write(sourceRoot.resolve(name), buf.toString());
+    }
+
+    private void assertDescriptorSetMatchesProtoc(Path descriptorSetFile) throws Exception {
+        var expectedFile = tmp.resolve("expected.protobin");
+        var args = new ArrayList<String>();
+        args.add("--proto_path=" + sourceRoot);
+        args.add("--include_imports");
+        args.add("--include_source_info");
+        args.add("--descriptor_set_out=" + expectedFile);
+        for (var protoFile : mojo.findProtoFilesInDirectory(sourceRoot.toFile())) {
+            args.add(sourceRoot.relativize(protoFile.toPath()).toString());
+        }
+        TestTools.runProtoc(args);
+        assertArrayEquals(Files.readAllBytes(expectedFile), Files.readAllBytes(descriptorSetFile));
+    }
+
+    private static void writeJar(Path jar, String content) throws Exception {
+        try (var out = new JarOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new JarEntry("dep/dep.proto"));
+            out.write(("syntax = \"proto3\";\n" + content).getBytes(UTF_8));
+            out.closeEntry();
+        }
+    }
+
+    void generate() throws Exception {
+        var protocExecutable = TestTools.getProtocExecutable();
+        var tools = new PreparedTools(CompletableFuture.completedFuture(protocExecutable),
+                CompletableFuture.completedFuture((File) null));
+        var protoFiles = mojo.findProtoFilesInDirectory(sourceRoot.toFile());
+        mojo.generate(protoFiles, ProtocMojo.findGeneratedFilesInDirectory(outputDirectory.toFile()), tools);
+    }
+}
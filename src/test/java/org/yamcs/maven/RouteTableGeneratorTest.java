@@ -0,0 +1,173 @@
+package org.yamcs.maven;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorResponse;
+
+/**
+ * Compiles the route table generated for a fixture proto, and matches request
+ * paths against it.
+ */
+class RouteTableGeneratorTest {
+
+    private static final List<String> FIXTURES = List.of(
+            "example/options/annotations.proto",
+            "example/routes.proto",
+            "example/service.proto");
+
+    private static final List<String> WELL_KNOWN_TYPES = List.of(
+            "google/protobuf/descriptor.proto",
+            "google/protobuf/empty.proto",
+            "google/protobuf/timestamp.proto");
+
+    @TempDir
+    Path tmp;
+
+    private FileDescriptorSet descriptorSet;
+    private Path sourceDirectory;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        var sourceRoot = TestTools.copyResources(tmp.resolve("protos"), "protos", FIXTURES);
+        var includeRoot = TestTools.copyResources(tmp.resolve("include"), "", WELL_KNOWN_TYPES);
+        sourceDirectory = Files.createDirectories(tmp.resolve("java"));
+
+        var descriptorSetFile = tmp.resolve("routes.protobin");
+        TestTools.runProtoc(List.of("--proto_path=" + sourceRoot, "--proto_path=" + includeRoot,
+                "--java_out=" + sourceDirectory, "--include_imports", "--include_source_info",
+                "--descriptor_set_out=" + descriptorSetFile,
+                "example/options/annotations.proto", "example/routes.proto", "example/service.proto"));
+        descriptorSet = FileDescriptorSet.parseFrom(Files.readAllBytes(descriptorSetFile));
+    }
+
+    @Test
+    void templatedPathsAreMatched() throws Exception {
+        var response = generate("routes", "example/routes.proto");
+        for (var file : response.getFileList()) {
+            if (file.getName().endsWith("Routes.java")) {
+                TestTools.write(sourceDirectory.resolve(file.getName()), file.getContent());
+            }
+        }
+
+        // The generated service implements org.yamcs.api.Api, which is not on the test
+        // classpath. The route table only needs its descriptor constants.
+        TestTools.write(sourceDirectory.resolve("org/example/routes/AbstractRoutedService.java"), String.join("\n",
+                "package org.example.routes;",
+                "import com.google.protobuf.Descriptors.MethodDescriptor;",
+                "import com.google.protobuf.Descriptors.ServiceDescriptor;",
+                "class AbstractRoutedService {",
+                "    static final ServiceDescriptor SERVICE_DESCRIPTOR = RoutesProto.getDescriptor().getServices().get(0);",
+                "    static final MethodDescriptor[] METHOD_DESCRIPTORS = SERVICE_DESCRIPTOR.getMethods()",
+                "            .toArray(new MethodDescriptor[0]);",
+                "}"));
+        var routes = TestTools.compile(sourceDirectory, Files.createDirectories(tmp.resolve("classes")))
+                .loadClass("org.example.routes.RoutesProtoRoutes");
+
+        var matcher = new RouteMatcher(routes);
+        assertEquals("ListAll", matcher.match("GET", "/api/items/all"));
+        assertEquals(Map.of(), matcher.params);
+
+        assertEquals("GetItem", matcher.match("GET", "/api/simulator/items/all"));
+        assertEquals(Map.of("instance", "simulator", "id", "all"), matcher.params);
+
+        assertEquals("UpdateItem", matcher.match("POST", "/api/simulator/items/a1"));
+        assertEquals(Map.of("instance", "simulator", "id", "a1"), matcher.params);
+
+        assertEquals("StartItem", matcher.match("POST", "/api/simulator/items/a1:start"));
+        assertEquals(Map.of("instance", "simulator", "id", "a1"), matcher.params);
+
+        assertEquals("GetFile", matcher.match("GET", "/api/files/simulator/a/b/c.txt"));
+        assertEquals(Map.of("instance", "simulator", "path", "a/b/c.txt"), matcher.params);
+
+        assertEquals("ListLinks", matcher.match("GET", "/api/links/simulator"));
+        assertEquals(Map.of("instance", "simulator"), matcher.params);
+        assertEquals("ListLinks", matcher.match("GET", "/api/links/simulator/udp"));
+        assertEquals(Map.of("instance", "simulator", "link", "udp"), matcher.params);
+
+        // Any verb
+        assertEquals("GetItem", matcher.match(null, "/api/simulator/items/a1"));
+
+        assertEquals(null, matcher.match("DELETE", "/api/simulator/items/a1"));
+        assertEquals(null, matcher.match("GET", "/api/simulator/items"));
+        assertEquals(null, matcher.match("GET", "/api/simulator/items/a1/extra"));
+
+        // Variables do not match an empty prefix, so this is an id rather than a custom verb
+        assertEquals("UpdateItem", matcher.match("POST", "/api/simulator/items/:start"));
+        assertEquals(Map.of("instance", "simulator", "id", ":start"), matcher.params);
+    }
+
+    @Test
+    void routeTablesAreOptIn() {
+        var response = generate("", "example/routes.proto");
+        assertFalse(response.hasError());
+        assertEquals(List.of(), getRouteTables(response));
+    }
+
+    @Test
+    void routeTablesAreOnlyGeneratedForFilesToGenerate() {
+        // Both files have routes
+        var response = generate("routes", "example/routes.proto");
+        assertEquals(List.of("org/example/routes/RoutesProtoRoutes.java"), getRouteTables(response));
+
+        response = generate("routes", "example/service.proto");
+        assertEquals(List.of("org/example/service/ServiceProtoRoutes.java"), getRouteTables(response));
+    }
+
+    private CodeGeneratorResponse generate(String parameter, String fileToGenerate) {
+        var request = CodeGeneratorRequest.newBuilder()
+                .addFileToGenerate(fileToGenerate)
+                .addAllProtoFile(descriptorSet.getFileList())
+                .setParameter(parameter)
+                .build();
+        var response = ServiceGenerator.generate(request);
+        assertFalse(response.hasError(), response.getError());
+        return response;
+    }
+
+    private static List<String> getRouteTables(CodeGeneratorResponse response) {
+        return response.getFileList().stream()
+                .map(CodeGeneratorResponse.File::getName)
+                .filter(name -> name.endsWith("Routes.java"))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Calls the static methods of a generated route table.
+     */
+    private static final class RouteMatcher {
+
+        final Method match;
+        final Method getMethod;
+        Map<String, String> params;
+
+        RouteMatcher(Class<?> routes) throws Exception {
+            match = routes.getMethod("match", String.class, String.class, Map.class);
+            getMethod = routes.getMethod("getMethod", int.class);
+        }
+
+        /**
+         * Returns the name of the matched method, or {@code null}.
+         */
+        String match(String verb, String path) throws Exception {
+            params = new HashMap<>();
+            var route = (int) match.invoke(null, verb, path, params);
+            return route < 0 ? null : ((MethodDescriptor) getMethod.invoke(null, route)).getName();
+        }
+    }
+}
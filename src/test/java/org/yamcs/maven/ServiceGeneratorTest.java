@@ -0,0 +1,116 @@
+package org.yamcs.maven;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorRequest;
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorResponse;
+
+/**
+ * Checks the sources generated by {@link ServiceGenerator} for generator
+ * options.
+ */
+class ServiceGeneratorTest {
+
+    private static final List<String> FIXTURES = List.of(
+            "example/options/annotations.proto",
+            "example/routes.proto",
+            "example/service.proto");
+
+    private static final List<String> WELL_KNOWN_TYPES = List.of(
+            "google/protobuf/descriptor.proto",
+            "google/protobuf/empty.proto",
+            "google/protobuf/timestamp.proto");
+
+    @TempDir
+    Path tmp;
+
+    private FileDescriptorSet descriptorSet;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        var sourceRoot = TestTools.copyResources(tmp.resolve("protos"), "protos", FIXTURES);
+        var includeRoot = TestTools.copyResources(tmp.resolve("include"), "", WELL_KNOWN_TYPES);
+        var descriptorSetFile = tmp.resolve("services.protobin");
+        TestTools.runProtoc(List.of("--proto_path=" + sourceRoot, "--proto_path=" + includeRoot,
+                "--include_imports", "--include_source_info", "--descriptor_set_out=" + descriptorSetFile,
+                "example/routes.proto", "example/service.proto"));
+        descriptorSet = FileDescriptorSet.parseFrom(Files.readAllBytes(descriptorSetFile));
+    }
+
+    @Test
+    void metricsAreReadThroughSharedInterface() throws Exception {
+        var response = generate("metrics");
+        var interfaces = getFileNames(response, "ServiceMetrics.java");
+        assertEquals(List.of(
+                "org/example/routes/ServiceMetrics.java",
+                "org/example/service/ServiceMetrics.java"), interfaces);
+
+        for (var name : List.of("org/example/routes/AbstractRoutedService.java",
+                "org/example/service/AbstractItemService.java")) {
+            var content = getContent(response, name);
+            assertTrue(content.contains(" implements Api<T>, ServiceMetrics {"), name);
+        }
+
+        // The interface only depends on protobuf, so that it compiles on its own
+        var sourceDirectory = tmp.resolve("java");
+        TestTools.write(sourceDirectory.resolve(interfaces.get(0)), getContent(response, interfaces.get(0)));
+        var metrics = TestTools.compile(sourceDirectory, Files.createDirectories(tmp.resolve("classes")))
+                .loadClass("org.example.routes.ServiceMetrics");
+        assertTrue(metrics.isInterface());
+        var methods = Arrays.stream(metrics.getMethods())
+                .map(Method::getName)
+                .sorted()
+                .collect(Collectors.toList());
+        assertEquals(List.of("getCallCount", "getDescriptorForType", "getErrorCount", "getLatencyHistogram",
+                "getTotalNanos", "isMetricsEnabled", "setMetricsEnabled"), methods);
+    }
+
+    @Test
+    void metricsInterfaceIsOptIn() throws Exception {
+        var response = generate("");
+        assertEquals(List.of(), getFileNames(response, "ServiceMetrics.java"));
+        var content = getContent(response, "org/example/service/AbstractItemService.java");
+        assertFalse(content.contains("ServiceMetrics"));
+    }
+
+    private CodeGeneratorResponse generate(String parameter) {
+        var request = CodeGeneratorRequest.newBuilder()
+                .addFileToGenerate("example/routes.proto")
+                .addFileToGenerate("example/service.proto")
+                .addAllProtoFile(descriptorSet.getFileList())
+                .setParameter(parameter)
+                .build();
+        var response = ServiceGenerator.generate(request);
+        assertFalse(response.hasError(), response.getError());
+        return response;
+    }
+
+    private static List<String> getFileNames(CodeGeneratorResponse response, String suffix) {
+        return response.getFileList().stream()
+                .map(CodeGeneratorResponse.File::getName)
+                .filter(name -> name.endsWith(suffix))
+                .collect(Collectors.toList());
+    }
+
+    private static String getContent(CodeGeneratorResponse response, String name) {
+        return response.getFileList().stream()
+                .filter(file -> file.getName().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No file " + name))
+                .getContent();
+    }
+}
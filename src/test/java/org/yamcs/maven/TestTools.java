@@ -0,0 +1,150 @@
+package org.yamcs.maven;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.tools.ToolProvider;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+/**
+ * Helpers shared by tests.
+ */
+final class TestTools {
+
+    private static File protocExecutable;
+
+    private TestTools() {
+    }
+
+    /**
+     * Returns the {@code protoc} executable resolved by the build, copied to a
+     * location where it can be made executable.
+     */
+    static synchronized File getProtocExecutable() throws IOException {
+        if (protocExecutable == null) {
+            var property = System.getProperty("protoc.executable");
+            if (property == null || !new File(property).isFile()) {
+                throw new IllegalStateException("protoc not available at " + property);
+            }
+            var targetFile = Files.createTempFile("protoc", ".exe");
+            Files.copy(Path.of(property), targetFile, StandardCopyOption.REPLACE_EXISTING);
+            targetFile.toFile().setExecutable(true);
+            targetFile.toFile().deleteOnExit();
+            protocExecutable = targetFile.toFile();
+        }
+        return protocExecutable;
+    }
+
+    /**
+     * Runs {@code protoc} with the given arguments, and fails if it does not exit
+     * cleanly.
+     */
+    static void runProtoc(List<String> args) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(getProtocExecutable().getAbsolutePath());
+        command.addAll(args);
+        var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        var output = new String(process.getInputStream().readAllBytes(), UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("protoc failed: " + output);
+        }
+    }
+
+    /**
+     * Sets a field, such as a mojo parameter, that has no setter.
+     */
+    static void setField(Object target, String name, Object value) {
+        for (var type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                // Try superclass
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        throw new IllegalArgumentException("No field " + name + " in " + target.getClass());
+    }
+
+    static Path write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.writeString(file, content, UTF_8);
+    }
+
+    /**
+     * Copies classpath resources to a directory, keeping their relative paths.
+     *
+     * @param prefix
+     *               the resource directory of the given names, or an empty string.
+     */
+    static Path copyResources(Path directory, String prefix, List<String> names) throws IOException {
+        for (var name : names) {
+            var resource = prefix.isEmpty() ? name : prefix + "/" + name;
+            try (var in = TestTools.class.getClassLoader().getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new IllegalArgumentException("No resource " + resource);
+                }
+                var target = directory.resolve(name);
+                Files.createDirectories(target.getParent());
+                Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Compiles all Java sources of a directory against the test classpath, and
+     * returns a class loader for the result.
+     */
+    static ClassLoader compile(Path sourceDirectory, Path classesDirectory) throws IOException {
+        var args = new ArrayList<String>();
+        args.add("-d");
+        args.add(classesDirectory.toString());
+        args.add("-classpath");
+        args.add(System.getProperty("java.class.path"));
+        args.add("-proc:none");
+        args.add("-nowarn");
+        try (var files = Files.walk(sourceDirectory)) {
+            files.filter(file -> file.toString().endsWith(".java")).forEach(file -> args.add(file.toString()));
+        }
+        var err = new ByteArrayOutputStream();
+        var compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler.run(null, err, err, args.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("Compilation failed:\n" + err.toString(UTF_8));
+        }
+        return new URLClassLoader(new URL[] { classesDirectory.toUri().toURL() }, TestTools.class.getClassLoader());
+    }
+
+    /**
+     * A log that records info messages, for checking which path a mojo took.
+     */
+    static final class RecordingLog extends SystemStreamLog {
+
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void info(CharSequence content) {
+            messages.add(content.toString());
+            super.info(content);
+        }
+
+        boolean contains(String prefix) {
+            return messages.stream().anyMatch(message -> message.startsWith(prefix));
+        }
+    }
+}